@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Lanes of database access of {@link PostgreSQLFingerprintStorage}, each with its own concurrency limit and queue, so
+ * that interactive reads and background work cannot starve the fingerprint writes of builds.
+ * <p>
+ * Calls wait in the queue of their lane for at most their {@link LatencyBudget}, and then fail as if PostgreSQL were
+ * overloaded, so that writes are spooled to the {@link FingerprintJournal}. Background calls additionally wait for as
+ * long as build-critical calls are queued. Limits are configured with the {@code bulkhead.<lane>Concurrency} system
+ * properties, and should add up to at most the size of the connection pool.
+ */
+@Restricted(NoExternalUse.class)
+public enum Bulkhead {
+    /**
+     * Fingerprint writes, which builds wait for.
+     */
+    BUILD(8) {
+        @Override
+        public String getDisplayName() {
+            return Messages.Bulkhead_Build();
+        }
+    },
+    /**
+     * Fingerprint reads, e.g. from the UI or the REST API.
+     */
+    INTERACTIVE(4) {
+        @Override
+        public String getDisplayName() {
+            return Messages.Bulkhead_Interactive();
+        }
+    },
+    /**
+     * Retention, job maintenance and shard rebalancing, which can always be postponed.
+     */
+    BACKGROUND(2) {
+        @Override
+        public String getDisplayName() {
+            return Messages.Bulkhead_Background();
+        }
+    };
+
+    /**
+     * Interval at which background calls check whether build-critical calls are still queued.
+     */
+    private static final long YIELD_MILLIS = 10;
+
+    private final int concurrency;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    Bulkhead(int defaultConcurrency) {
+        concurrency = Math.max(
+                1,
+                SystemProperties.getInteger(
+                        PostgreSQLFingerprintStorage.class.getName() + ".bulkhead." + name().toLowerCase(Locale.ROOT)
+                                + "Concurrency",
+                        defaultConcurrency));
+        permits = new Semaphore(concurrency, true);
+    }
+
+    /**
+     * Returns the lane of the calls of the operation with the given budget.
+     */
+    static @NonNull Bulkhead of(@NonNull LatencyBudget budget) {
+        switch (budget) {
+            case LOAD:
+                return INTERACTIVE;
+            case CLEANUP:
+                return BACKGROUND;
+            default:
+                return BUILD;
+        }
+    }
+
+    /**
+     * Waits for a permit of this lane for at most the given budget.
+     *
+     * @throws SQLException with the {@code insufficient_resources} state if no permit became available in time.
+     */
+    @NonNull
+    Permit acquire(@NonNull LatencyBudget budget) throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(budget.getBudgetMillis());
+        queued.incrementAndGet();
+        try {
+            if (this == BACKGROUND) {
+                while (BUILD.permits.hasQueuedThreads()) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        throw timeout();
+                    }
+                    Thread.sleep(YIELD_MILLIS);
+                }
+            }
+            if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw timeout();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database access permit", "57014", e);
+        } finally {
+            queued.decrementAndGet();
+        }
+        long waited = System.nanoTime() - start;
+        acquisitions.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulate(waited);
+        return permits::release;
+    }
+
+    private @NonNull SQLException timeout() {
+        timeouts.increment();
+        return new SQLException("Timed out waiting for a database access permit of lane " + name(), "53000");
+    }
+
+    public abstract String getDisplayName();
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Returns the number of calls currently holding a permit.
+     */
+    public int getActive() {
+        return concurrency - permits.availablePermits();
+    }
+
+    /**
+     * Returns the number of calls currently waiting for a permit.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of permits granted since startup.
+     */
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * Returns the number of calls which gave up waiting for a permit since startup.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Returns the average time waited for a permit since startup, in milliseconds.
+     */
+    public long getAverageWaitMillis() {
+        long acquisitions = this.acquisitions.sum();
+        return acquisitions > 0 ? TimeUnit.NANOSECONDS.toMillis(waitNanos.sum() / acquisitions) : 0;
+    }
+
+    /**
+     * Returns the longest time waited for a permit since startup, in milliseconds.
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * Permit of a lane, returned when closed.
+     */
+    interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
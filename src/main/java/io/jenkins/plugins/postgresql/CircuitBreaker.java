@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.sql.SQLException;
+import jenkins.util.SystemProperties;
+
+/**
+ * Circuit breaker guarding the calls of {@link PostgreSQLFingerprintStorage} to PostgreSQL.
+ * <p>
+ * After {@link #FAILURE_THRESHOLD} consecutive failed or slow calls the breaker opens and calls are rejected without
+ * touching the database. After {@link #OPEN_SECONDS} seconds a single trial call is let through: if it succeeds the
+ * breaker closes again, otherwise it stays open for another period.
+ */
+final class CircuitBreaker {
+
+    static final int FAILURE_THRESHOLD = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".circuitBreaker.failureThreshold", 5);
+    static final int OPEN_SECONDS = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".circuitBreaker.openSeconds", 30);
+    static final int SLOW_CALL_SECONDS = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".circuitBreaker.slowCallSeconds", 10);
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final long slowCallNanos;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    CircuitBreaker() {
+        this(FAILURE_THRESHOLD, OPEN_SECONDS * 1_000_000_000L, SLOW_CALL_SECONDS * 1_000_000_000L);
+    }
+
+    CircuitBreaker(int failureThreshold, long openNanos, long slowCallNanos) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+        this.slowCallNanos = slowCallNanos;
+    }
+
+    /**
+     * Returns true if a call to PostgreSQL may be made. Every permitted call must be followed by either
+     * {@link #recordSuccess(long)} or {@link #recordFailure()}.
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt >= openNanos) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Records a call which succeeded after the given duration. Calls slower than {@link #SLOW_CALL_SECONDS} count as
+     * failures.
+     */
+    synchronized void recordSuccess(long durationNanos) {
+        if (durationNanos >= slowCallNanos) {
+            recordFailure();
+            return;
+        }
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Waits for a permit of the given {@link Bulkhead} lane for a call permitted by {@link #allowRequest()}. If none
+     * becomes available in time, the call is abandoned before reaching PostgreSQL, so a trial call granted while half
+     * open is given back, to be granted again to the next caller, rather than leaving the breaker half open for good.
+     */
+    @NonNull
+    Bulkhead.Permit acquire(@NonNull Bulkhead bulkhead, @NonNull LatencyBudget budget) throws SQLException {
+        try {
+            return bulkhead.acquire(budget);
+        } catch (SQLException e) {
+            releaseTrial();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back the trial call granted while half open, if any, for a call abandoned without telling anything about
+     * the health of PostgreSQL.
+     */
+    synchronized void releaseTrial() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openedAt = System.nanoTime() - openNanos;
+        }
+    }
+
+    synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns true if the given failure indicates that PostgreSQL is unavailable or overloaded, rather than that it
+     * rejected the statement.
+     */
+    static boolean isTransientFailure(@NonNull SQLException e) {
+        String sqlState = e.getSQLState();
+        if (sqlState == null) {
+            return true;
+        }
+        return sqlState.startsWith("08") // connection exception
+                || sqlState.startsWith("40") // transaction rollback
+                || sqlState.startsWith("53") // insufficient resources
+                || sqlState.startsWith("57") // operator intervention, including query_canceled
+                || sqlState.startsWith("58") // system error
+                || sqlState.equals("55P03"); // lock_not_available
+    }
+}
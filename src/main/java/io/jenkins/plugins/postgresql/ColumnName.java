@@ -28,12 +28,27 @@ package io.jenkins.plugins.postgresql;
  */
 public class ColumnName {
 
+    static final String FINGERPRINT_ID = "fingerprint_id";
     static final String TIMESTAMP = "timestamp";
     static final String FILENAME = "filename";
     static final String ORIGINAL_JOB_NAME = "original_job_name";
     static final String ORIGINAL_JOB_BUILD_NUMBER = "original_job_build_number";
+    static final String STATE_DIGEST = "state_digest";
     static final String USAGES = "usages";
+    static final String FINGERPRINTS = "fingerprints";
     static final String FACETS = "facets";
+    static final String BLOCKED_FINGERPRINTS = "blocked_fingerprints";
     static final String TOTAL = "total";
     static final String EXISTS = "exists";
+    static final String NAME = "name";
+    static final String TABLE_NAME = "table_name";
+    static final String LIVE_TUPLES = "live_tuples";
+    static final String DEAD_TUPLES = "dead_tuples";
+    static final String LAST_AUTOVACUUM = "last_autovacuum";
+    static final String TABLE_SIZE = "table_size";
+    static final String INDEXES_SIZE = "indexes_size";
+    static final String SCANS = "scans";
+    static final String TUPLES_READ = "tuples_read";
+    static final String SIZE = "size";
+    static final String ESTIMATED_ROWS = "estimated_rows";
 }
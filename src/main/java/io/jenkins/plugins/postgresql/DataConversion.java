@@ -27,13 +27,23 @@ import com.thoughtworks.xstream.converters.basic.DateConverter;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.model.Fingerprint;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.Timestamp;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.kohsuke.accmod.Restricted;
@@ -65,9 +75,9 @@ public class DataConversion {
     static final String STRING = "string";
     static final String ENTRY = "entry";
     static final String JOB = "job";
-    static final String BUILD_NUMBER = "build_number";
     static final String FACET_NAME = "facet_name";
     static final String FACET_ENTRY = "facet_entry";
+    static final String FACET_ENTRY_COMPRESSED = "facet_entry_compressed";
 
     static final String EMPTY_STRING = "";
 
@@ -153,7 +163,8 @@ public class DataConversion {
     }
 
     /**
-     * Extracts the fingerprint's usage metadata (jobs and builds) obtained from PostgreSQL.
+     * Extracts the fingerprint's usage metadata (jobs and builds) obtained from PostgreSQL, where the builds of each
+     * job have already been collapsed into ranges in the serialized form of {@link Fingerprint.RangeSet}.
      */
     static @NonNull Map<String, Fingerprint.RangeSet> extractUsageMetadata(@CheckForNull String usagesAsJSONString) {
         Map<String, Fingerprint.RangeSet> usageMetadata = new HashMap<>();
@@ -163,17 +174,8 @@ public class DataConversion {
 
             for (int i = 0; i < usages.length(); i++) {
                 JSONObject usage = usages.getJSONObject(i);
-
-                String jobName = usage.getString(JOB);
-                int buildNumber = usage.getInt(BUILD_NUMBER);
-
-                if (usageMetadata.containsKey(jobName)) {
-                    usageMetadata.get(jobName).add(buildNumber);
-                } else {
-                    Fingerprint.RangeSet rangeSet = new Fingerprint.RangeSet();
-                    rangeSet.add(buildNumber);
-                    usageMetadata.put(jobName, rangeSet);
-                }
+                usageMetadata.put(
+                        usage.getString(JOB), Fingerprint.RangeSet.fromString(usage.getString(RANGES), false));
             }
         }
 
@@ -197,11 +199,15 @@ public class DataConversion {
                     break;
                 }
 
+                JSONObject facetEntry = facetFromResultSet.has(FACET_ENTRY_COMPRESSED)
+                        ? new JSONObject(decompressFacetEntry(
+                                Base64.getMimeDecoder().decode(facetFromResultSet.getString(FACET_ENTRY_COMPRESSED))))
+                        : facetFromResultSet.getJSONObject(FACET_ENTRY);
                 if (facetsObject.has(facetName)) {
-                    facetsObject.getJSONArray(facetName).put(facetFromResultSet.getJSONObject(FACET_ENTRY));
+                    facetsObject.getJSONArray(facetName).put(facetEntry);
                 } else {
                     JSONArray facetEntries = new JSONArray();
-                    facetEntries.put(facetFromResultSet.getJSONObject(FACET_ENTRY));
+                    facetEntries.put(facetEntry);
                     facetsObject.put(facetName, facetEntries);
                 }
             }
@@ -210,4 +216,32 @@ public class DataConversion {
         facetsArray.put(facetsObject);
         return facetsArray;
     }
+
+    /**
+     * Compresses the given facet entry JSON for storage in the {@code FACET_ENTRY_COMPRESSED} column.
+     */
+    static @NonNull byte[] compressFacetEntry(@NonNull String facetEntry) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream, deflater)) {
+            deflaterOutputStream.write(facetEntry.getBytes(StandardCharsets.UTF_8));
+            deflaterOutputStream.finish();
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a facet entry compressed by {@link #compressFacetEntry(String)}.
+     */
+    static @NonNull String decompressFacetEntry(@NonNull byte[] compressedFacetEntry) {
+        try (InputStream inputStream = new InflaterInputStream(new ByteArrayInputStream(compressedFacetEntry))) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
@@ -2,12 +2,27 @@ package io.jenkins.plugins.postgresql;
 
 import static hudson.init.InitMilestone.SYSTEM_CONFIG_ADAPTED;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sql.DataSource;
 import jenkins.fingerprints.FingerprintStorage;
+import jenkins.util.SystemProperties;
 import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
 import org.jenkinsci.plugins.database.Database;
 import org.jenkinsci.plugins.database.GlobalDatabaseConfiguration;
 import org.kohsuke.accmod.Restricted;
@@ -18,10 +33,134 @@ public class DatabaseSchemaLoader {
 
     private static final Logger LOGGER = Logger.getLogger(DatabaseSchemaLoader.class.getName());
 
-    static boolean MIGRATED;
+    /**
+     * Maximum number of seconds a connection waits for a running schema migration before failing with
+     * {@link #SCHEMA_NOT_READY}.
+     */
+    private static final int SCHEMA_READINESS_TIMEOUT_SECONDS = Math.max(
+            0,
+            SystemProperties.getInteger(
+                    PostgreSQLFingerprintStorage.class.getName() + ".schemaReadinessTimeoutSeconds", 10));
 
+    /**
+     * SQL state of the failures of connections made before the schema is migrated, {@code
+     * object_not_in_prerequisite_state}. Unlike the states of an unavailable database, it neither counts against the
+     * {@link CircuitBreaker} nor has the writes journaled.
+     */
+    static final String SCHEMA_NOT_READY = "55000";
+
+    /**
+     * Data source of the database whose schema has been migrated last.
+     */
+    private static volatile DataSource migratedDataSource;
+
+    /**
+     * Runs the migrations on a thread of their own, so that a long migration, e.g. building indexes concurrently, does
+     * not hold one of the threads of {@link jenkins.util.Timer} shared by all of Jenkins.
+     */
+    private static final ExecutorService MIGRATION_EXECUTOR = createMigrationExecutor();
+
+    private static CompletableFuture<Void> migration;
+
+    private static @NonNull ExecutorService createMigrationExecutor() {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+                1,
+                1,
+                60,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PostgreSQLFingerprintStorage.migration"));
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Starts migrating the schema in the background once the system configuration is loaded, so that the first build
+     * after a restart does not have to wait for it.
+     */
     @Initializer(after = SYSTEM_CONFIG_ADAPTED)
+    public static void migrateSchemaInBackground() {
+        startMigration();
+    }
+
+    /**
+     * Returns true once the schema of the configured database has been migrated.
+     */
+    static boolean isMigrated() {
+        DataSource dataSource = migratedDataSource;
+        return dataSource != null && dataSource == configuredDataSource();
+    }
+
+    private static @CheckForNull DataSource configuredDataSource() {
+        FingerprintStorage configuration = FingerprintStorage.get();
+        if (!(configuration instanceof PostgreSQLFingerprintStorage)) {
+            return null;
+        }
+        Database database = ((PostgreSQLFingerprintStorage) configuration)
+                .getConnectionSupplier()
+                .database();
+        if (database == null) {
+            return null;
+        }
+        try {
+            return database.getDataSource();
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the schema to be migrated, starting the migration if it has not run yet, e.g. because
+     * {@link PostgreSQLFingerprintStorage} was configured after startup, or if it failed.
+     *
+     * @throws SQLException with the {@link #SCHEMA_NOT_READY} state if the migration does not complete within
+     *     {@link #SCHEMA_READINESS_TIMEOUT_SECONDS}, or failed.
+     */
+    static void awaitMigration() throws SQLException {
+        if (isMigrated()) {
+            return;
+        }
+        try {
+            startMigration().get(SCHEMA_READINESS_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the database schema migration", "57014", e);
+        } catch (TimeoutException e) {
+            throw new SQLException("Database schema migration is still running", SCHEMA_NOT_READY, e);
+        } catch (ExecutionException e) {
+            throw new SQLException("Database schema migration failed", SCHEMA_NOT_READY, e.getCause());
+        }
+        if (!isMigrated()) {
+            throw new SQLException("Database schema has not been migrated", SCHEMA_NOT_READY);
+        }
+    }
+
+    /**
+     * Returns true if the given failure is that of a connection made before the schema is migrated.
+     */
+    static boolean isSchemaNotReady(@NonNull SQLException e) {
+        return SCHEMA_NOT_READY.equals(e.getSQLState());
+    }
+
+    private static synchronized CompletableFuture<Void> startMigration() {
+        if (migration == null || (migration.isDone() && !isMigrated())) {
+            migration = CompletableFuture.runAsync(DatabaseSchemaLoader::migrate, MIGRATION_EXECUTOR);
+        }
+        return migration;
+    }
+
+    /**
+     * Migrates the schema synchronously, logging rather than throwing failures.
+     */
     public static void migrateSchema() {
+        try {
+            migrate();
+        } catch (IllegalStateException e) {
+            // Already logged.
+        }
+    }
+
+    private static void migrate() {
         FingerprintStorage configuration = FingerprintStorage.get();
         if (configuration instanceof PostgreSQLFingerprintStorage) {
             try {
@@ -30,21 +169,41 @@ public class DatabaseSchemaLoader {
                         storage.getConnectionSupplier().database().getDataSource();
                 Database database = GlobalDatabaseConfiguration.get().getDatabase();
                 assert database != null;
-                Flyway flyway = Flyway.configure(DatabaseSchemaLoader.class.getClassLoader())
-                        .baselineOnMigrate(true)
-                        .table("fingerprint_flyway_schema_history")
-                        .dataSource(dataSource)
-                        .locations("db/migration/postgres")
-                        .load();
-                flyway.migrate();
-                MIGRATED = true;
+                migrate(dataSource);
+                migratedDataSource = dataSource;
             } catch (Exception e) {
                 // TODO add admin monitor
                 LOGGER.log(
                         Level.SEVERE,
                         "Error migrating database, correct this error before using the fingerprint plugin",
                         e);
+                throw new IllegalStateException("Error migrating database", e);
             }
         }
     }
+
+    /**
+     * Migrates the schema of the given database, e.g. of a {@link Shard}.
+     */
+    static void migrate(@NonNull DataSource dataSource) {
+        Flyway flyway = configure(dataSource).load();
+        flyway.migrate();
+    }
+
+    /**
+     * Returns the Flyway configuration migrating the schema of the given database.
+     * <p>
+     * Some migrations create indexes concurrently, which waits for every transaction open on the tables, including the
+     * one Flyway would hold its lock in by default: it locks with a session-level lock instead. Those migrations first
+     * drop the invalid indexes a failed concurrent build leaves behind, so they mix in transactional statements.
+     */
+    static @NonNull FluentConfiguration configure(@NonNull DataSource dataSource) {
+        return Flyway.configure(DatabaseSchemaLoader.class.getClassLoader())
+                .configuration(Collections.singletonMap("flyway.postgresql.transactional.lock", "false"))
+                .baselineOnMigrate(true)
+                .mixed(true)
+                .table("fingerprint_flyway_schema_history")
+                .dataSource(dataSource)
+                .locations("db/migration/postgres");
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Numbers of fingerprints, usages and facets a Jenkins instance stores in PostgreSQL, as maintained by the
+ * statement-level triggers of the fingerprint tables in the {@code FINGERPRINT_COUNTER} table. Reading them looks up a
+ * few counter rows by primary key whatever the size of the tables, and they are exact as of the last committed write.
+ */
+public final class FingerprintCounters {
+
+    static final FingerprintCounters NONE = new FingerprintCounters(0, 0, 0, 0);
+
+    private final long fingerprints;
+    private final long usages;
+    private final long facets;
+    private final long blockedFingerprints;
+
+    private FingerprintCounters(long fingerprints, long usages, long facets, long blockedFingerprints) {
+        this.fingerprints = fingerprints;
+        this.usages = usages;
+        this.facets = facets;
+        this.blockedFingerprints = blockedFingerprints;
+    }
+
+    /**
+     * Reads the counters of the given instance through the given connection.
+     */
+    static @NonNull FingerprintCounters select(@NonNull Connection connection, @NonNull String instanceId)
+            throws SQLException {
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.LOAD.prepareStatement(connection, Queries.SELECT_FINGERPRINT_COUNTERS)) {
+            preparedStatement.setString(1, instanceId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return NONE;
+                }
+                return new FingerprintCounters(
+                        resultSet.getLong(ColumnName.FINGERPRINTS),
+                        resultSet.getLong(ColumnName.USAGES),
+                        resultSet.getLong(ColumnName.FACETS),
+                        resultSet.getLong(ColumnName.BLOCKED_FINGERPRINTS));
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of these counters and the given ones, e.g. of another {@link Shard}.
+     */
+    @NonNull
+    FingerprintCounters plus(@NonNull FingerprintCounters other) {
+        return new FingerprintCounters(
+                fingerprints + other.fingerprints,
+                usages + other.usages,
+                facets + other.facets,
+                blockedFingerprints + other.blockedFingerprints);
+    }
+
+    /**
+     * Returns the number of fingerprints.
+     */
+    public long getFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * Returns the number of (job, build) usage rows of all fingerprints.
+     */
+    public long getUsages() {
+        return usages;
+    }
+
+    /**
+     * Returns the number of facet rows of all fingerprints.
+     */
+    public long getFacets() {
+        return facets;
+    }
+
+    /**
+     * Returns the number of fingerprints having at least one facet blocking their deletion.
+     */
+    public long getBlockedFingerprints() {
+        return blockedFingerprints;
+    }
+}
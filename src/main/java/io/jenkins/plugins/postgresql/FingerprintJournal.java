@@ -0,0 +1,414 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Fingerprint;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Local append-only journal under {@code JENKINS_HOME}, which spools fingerprint writes while PostgreSQL is
+ * unavailable, until they are replayed by {@link PostgreSQLFingerprintStorage#replayJournal()}.
+ * <p>
+ * Records are appended to the file immediately and forced to disk in batches, every {@link #SYNC_INTERVAL_MILLIS}
+ * milliseconds or every {@link #SYNC_BATCH_SIZE} records, whichever comes first. A Jenkins crash loses nothing, an
+ * operating system crash loses at most the records of the last batch. Only the latest record of each fingerprint is
+ * kept pending; the file is compacted once records have been replayed.
+ * <p>
+ * A pending record superseded by a write to PostgreSQL is discarded with a tombstone, forced to disk at once so that a
+ * crash cannot replay the record over the newer write. Pending records are held in memory, up to
+ * {@link #MAX_PENDING_MEGABYTES}: once full, the journal refuses further writes.
+ */
+final class FingerprintJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintJournal.class.getName());
+
+    static final int SYNC_INTERVAL_MILLIS = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".journal.syncIntervalMillis", 200);
+    static final int SYNC_BATCH_SIZE =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".journal.syncBatchSize", 64);
+
+    /**
+     * Maximum size of the pending records in megabytes, beyond which writes are no longer spooled.
+     */
+    static final int MAX_PENDING_MEGABYTES = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".journal.maxPendingMegabytes", 64);
+
+    /**
+     * Maximum size of the payload of a single record, beyond which a length read back from the file is corrupt.
+     */
+    private static final int MAX_RECORD_BYTES = 256 * 1024 * 1024;
+
+    private static final byte SAVE = 'S';
+    private static final byte DELETE = 'D';
+    private static final byte DISCARD = 'X';
+
+    private static FingerprintJournal INSTANCE;
+
+    private final Path path;
+    private final long maxPendingBytes;
+    private final Map<String, Record> pending = new LinkedHashMap<>();
+    private long pendingBytes;
+    private FileChannel channel;
+    private int unsyncedRecords;
+
+    FingerprintJournal(@NonNull Path path) throws IOException {
+        this(path, MAX_PENDING_MEGABYTES * 1024L * 1024L);
+    }
+
+    FingerprintJournal(@NonNull Path path, long maxPendingBytes) throws IOException {
+        this.path = path;
+        this.maxPendingBytes = maxPendingBytes;
+        Files.createDirectories(path.getParent());
+        recover();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /**
+     * Returns the journal of this Jenkins instance, opening it and replaying its file into memory on first use.
+     */
+    static synchronized @NonNull FingerprintJournal get() throws IOException {
+        if (INSTANCE == null) {
+            File file = new File(Jenkins.get().getRootDir(), "postgresql-fingerprint-storage/journal.bin");
+            FingerprintJournal journal = new FingerprintJournal(file.toPath());
+            Timer.get()
+                    .scheduleWithFixedDelay(
+                            journal::syncQuietly, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            INSTANCE = journal;
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Spools a save of the given fingerprint.
+     */
+    synchronized void appendSave(@NonNull Fingerprint fingerprint) throws IOException {
+        append(new Record(SAVE, fingerprint.getHashString(), XStreamHandler.getXStream().toXML(fingerprint)));
+    }
+
+    /**
+     * Spools a deletion of the fingerprint with the given id.
+     */
+    synchronized void appendDelete(@NonNull String id) throws IOException {
+        append(new Record(DELETE, id, null));
+    }
+
+    private void append(@NonNull Record record) throws IOException {
+        Record previous = pending.get(record.id);
+        long newPendingBytes = pendingBytes - (previous != null ? previous.size() : 0) + record.size();
+        if (newPendingBytes > maxPendingBytes && newPendingBytes > pendingBytes) {
+            throw new IOException(
+                    "Fingerprint journal is full, failed in spooling a write of fingerprint: " + record.id);
+        }
+        write(record);
+        putPending(record);
+        if (++unsyncedRecords >= SYNC_BATCH_SIZE) {
+            sync();
+        }
+    }
+
+    private void write(@NonNull Record record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(encode(record));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void putPending(@NonNull Record record) {
+        removePending(record.id);
+        pending.put(record.id, record);
+        pendingBytes += record.size();
+    }
+
+    private @CheckForNull Record removePending(@NonNull String id) {
+        Record record = pending.remove(id);
+        if (record != null) {
+            pendingBytes -= record.size();
+        }
+        return record;
+    }
+
+    synchronized void sync() throws IOException {
+        if (unsyncedRecords > 0) {
+            channel.force(false);
+            unsyncedRecords = 0;
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to sync fingerprint journal: " + path, e);
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the pending record of the fingerprint with the given id, if any.
+     */
+    synchronized @CheckForNull Record get(@NonNull String id) {
+        return pending.get(id);
+    }
+
+    /**
+     * Returns up to {@code max} of the oldest pending records.
+     */
+    synchronized @NonNull List<Record> peek(int max) {
+        List<Record> records = new ArrayList<>();
+        for (Record record : pending.values()) {
+            if (records.size() >= max) {
+                break;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Marks the given record as written to PostgreSQL, unless it has been superseded by a newer record since.
+     */
+    synchronized void remove(@NonNull Record record) {
+        if (pending.get(record.id) == record) {
+            removePending(record.id);
+        }
+    }
+
+    /**
+     * Discards any pending record of the fingerprint with the given id, which has been superseded by a write to
+     * PostgreSQL, appending a tombstone so that the record is not replayed after a restart.
+     */
+    synchronized void discard(@NonNull String id) throws IOException {
+        if (removePending(id) != null) {
+            write(new Record(DISCARD, id, null));
+            channel.force(false);
+            unsyncedRecords = 0;
+        }
+    }
+
+    /**
+     * Rewrites the journal file so that it only contains the pending records.
+     */
+    synchronized void compact() throws IOException {
+        if (pending.isEmpty()) {
+            pendingBytes = 0;
+            channel.truncate(0);
+            channel.force(true);
+            unsyncedRecords = 0;
+            return;
+        }
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel temporaryChannel = FileChannel.open(
+                temporaryPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Record record : pending.values()) {
+                ByteBuffer buffer = ByteBuffer.wrap(encode(record));
+                while (buffer.hasRemaining()) {
+                    temporaryChannel.write(buffer);
+                }
+            }
+            temporaryChannel.force(true);
+        }
+        channel.close();
+        Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        unsyncedRecords = 0;
+    }
+
+    /**
+     * Reads the records of the journal file into {@link #pending}, truncating a torn or corrupt tail left behind by a
+     * crash. A record length beyond the end of the file or {@link #MAX_RECORD_BYTES} marks the end of the valid
+     * records, rather than being allocated.
+     */
+    private void recover() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        long fileLength = Files.size(path);
+        long validLength = 0;
+        try (InputStream inputStream = Files.newInputStream(path);
+                DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream))) {
+            while (true) {
+                Record record;
+                try {
+                    int length = dataInputStream.readInt();
+                    long checksum = dataInputStream.readLong();
+                    long remaining = fileLength - validLength - Integer.BYTES - Long.BYTES;
+                    if (length < 0 || length > remaining || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    dataInputStream.readFully(payload);
+                    if (checksum(payload) != checksum) {
+                        break;
+                    }
+                    record = decode(payload);
+                    validLength += Integer.BYTES + Long.BYTES + length;
+                } catch (EOFException e) {
+                    break;
+                }
+                if (record.type == DISCARD) {
+                    removePending(record.id);
+                } else {
+                    putPending(record);
+                }
+            }
+        }
+        if (validLength < fileLength) {
+            LOGGER.warning("Truncating incomplete fingerprint journal " + path + " at " + validLength + " bytes");
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                fileChannel.truncate(validLength);
+            }
+        }
+        if (!pending.isEmpty()) {
+            LOGGER.info("Recovered " + pending.size() + " fingerprint writes pending replay from " + path);
+        }
+    }
+
+    private static @NonNull byte[] encode(@NonNull Record record) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream dataOutputStream = new DataOutputStream(payload)) {
+            dataOutputStream.writeByte(record.type);
+            dataOutputStream.writeUTF(record.id);
+            if (record.fingerprintJSON != null) {
+                byte[] json = record.fingerprintJSON.getBytes(StandardCharsets.UTF_8);
+                dataOutputStream.writeInt(json.length);
+                dataOutputStream.write(json);
+            } else {
+                dataOutputStream.writeInt(-1);
+            }
+        }
+        byte[] payloadBytes = payload.toByteArray();
+        if (payloadBytes.length > MAX_RECORD_BYTES) {
+            throw new IOException("Fingerprint too large to spool to the journal: " + record.id);
+        }
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payloadBytes.length + Integer.BYTES + Long.BYTES);
+        try (DataOutputStream dataOutputStream = new DataOutputStream(frame)) {
+            dataOutputStream.writeInt(payloadBytes.length);
+            dataOutputStream.writeLong(checksum(payloadBytes));
+            dataOutputStream.write(payloadBytes);
+        }
+        return frame.toByteArray();
+    }
+
+    private static @NonNull Record decode(@NonNull byte[] payload) throws IOException {
+        try (DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(payload))) {
+            byte type = dataInputStream.readByte();
+            String id = dataInputStream.readUTF();
+            int length = dataInputStream.readInt();
+            String fingerprintJSON = null;
+            if (length >= 0) {
+                if (length > dataInputStream.available()) {
+                    throw new EOFException("Fingerprint JSON longer than its journal record: " + id);
+                }
+                byte[] json = new byte[length];
+                dataInputStream.readFully(json);
+                fingerprintJSON = new String(json, StandardCharsets.UTF_8);
+            }
+            return new Record(type, id, fingerprintJSON);
+        }
+    }
+
+    private static long checksum(@NonNull byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        return crc32.getValue();
+    }
+
+    /**
+     * A spooled write of a single fingerprint.
+     */
+    static final class Record {
+        private final byte type;
+        final String id;
+        private final String fingerprintJSON;
+
+        private Record(byte type, @NonNull String id, @CheckForNull String fingerprintJSON) {
+            this.type = type;
+            this.id = id;
+            this.fingerprintJSON = fingerprintJSON;
+        }
+
+        boolean isDelete() {
+            return type == DELETE;
+        }
+
+        /**
+         * Returns the approximate number of bytes this record holds in memory.
+         */
+        private long size() {
+            return 2L * (id.length() + (fingerprintJSON != null ? fingerprintJSON.length() : 0));
+        }
+
+        /**
+         * Returns the spooled fingerprint, or {@code null} if this record is a deletion.
+         */
+        @CheckForNull
+        Fingerprint toFingerprint() {
+            if (fingerprintJSON == null) {
+                return null;
+            }
+            return (Fingerprint) XStreamHandler.getXStream().fromXML(fingerprintJSON);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.fingerprints.FingerprintStorage;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Keeps the job names and build numbers referenced by stored fingerprints in sync with renamed and deleted jobs and
+ * deleted builds, with set-based statements rather than by loading and saving each affected fingerprint.
+ * <p>
+ * Events are queued and applied together, in a single transaction, {@link #DELAY_MILLIS} milliseconds after the first
+ * of them. Renaming or deleting a folder takes a single statement per table whatever the number of jobs and builds
+ * inside it, and the builds of a job discarded together are deleted by a single statement.
+ */
+@Restricted(NoExternalUse.class)
+public final class FingerprintMaintenance {
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintMaintenance.class.getName());
+
+    /**
+     * Number of milliseconds for which events are collected before being applied.
+     */
+    static final int DELAY_MILLIS = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".maintenance.delayMillis", 1000);
+
+    private static final List<Operation> pending = new ArrayList<>();
+    private static boolean scheduled;
+
+    private FingerprintMaintenance() {}
+
+    private static synchronized void enqueue(@NonNull Operation operation) {
+        if (!(FingerprintStorage.get() instanceof PostgreSQLFingerprintStorage)) {
+            return;
+        }
+        for (Operation pendingOperation : pending) {
+            if (pendingOperation.covers(operation)) {
+                return;
+            }
+        }
+        if (pending.isEmpty() || !pending.get(pending.size() - 1).merge(operation)) {
+            pending.add(operation);
+        }
+        if (!scheduled) {
+            scheduled = true;
+            Timer.get().schedule(FingerprintMaintenance::flush, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Applies the queued events, queuing them again for later if PostgreSQL is unavailable.
+     * <p>
+     * If applying them together fails for another reason, they are applied one by one, so that only the events which
+     * fail on their own are dropped, each with its own warning.
+     */
+    static void flush() {
+        List<Operation> operations;
+        synchronized (FingerprintMaintenance.class) {
+            operations = new ArrayList<>(pending);
+            pending.clear();
+            scheduled = false;
+        }
+        FingerprintStorage fingerprintStorage = FingerprintStorage.get();
+        if (operations.isEmpty() || !(fingerprintStorage instanceof PostgreSQLFingerprintStorage)) {
+            return;
+        }
+        PostgreSQLFingerprintStorage storage = (PostgreSQLFingerprintStorage) fingerprintStorage;
+        List<Operation> postponed;
+        try {
+            postponed = storage.maintain(operations) ? Collections.emptyList() : operations;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to update fingerprints in one go, applying events one by one", e);
+            postponed = applyOneByOne(storage, operations);
+        }
+        if (postponed.isEmpty()) {
+            return;
+        }
+        synchronized (FingerprintMaintenance.class) {
+            pending.addAll(0, postponed);
+            if (!scheduled) {
+                scheduled = true;
+                Timer.get().schedule(FingerprintMaintenance::flush, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Applies the given operations one at a time, dropping those which fail.
+     *
+     * @return the operations left to apply once PostgreSQL is available again.
+     */
+    private static @NonNull List<Operation> applyOneByOne(
+            @NonNull PostgreSQLFingerprintStorage storage, @NonNull List<Operation> operations) {
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            try {
+                if (!storage.maintain(Collections.singletonList(operation))) {
+                    return operations.subList(i, operations.size());
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update fingerprints for the " + operation + ", dropping it", e);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Escapes the given job name for use as a {@code LIKE} prefix matching the items inside it.
+     */
+    static @NonNull String descendantsPattern(@NonNull String fullName) {
+        return fullName.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "/%";
+    }
+
+    /**
+     * A set-based change of the stored fingerprints.
+     */
+    abstract static class Operation {
+
+        /**
+         * Applies this change, adding the ids of the fingerprints it changed to {@code changedIds}.
+         */
+        abstract void apply(
+                @NonNull Connection connection, @NonNull String instanceId, @NonNull Set<String> changedIds)
+                throws SQLException;
+
+        /**
+         * Returns true if applying this operation makes applying the given later one unnecessary.
+         */
+        boolean covers(@NonNull Operation operation) {
+            return false;
+        }
+
+        /**
+         * Merges the given later operation into this one if possible.
+         */
+        boolean merge(@NonNull Operation operation) {
+            return false;
+        }
+
+        static void collectIds(@NonNull PreparedStatement preparedStatement, @NonNull Set<String> changedIds)
+                throws SQLException {
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    changedIds.add(resultSet.getString(ColumnName.FINGERPRINT_ID));
+                }
+            }
+        }
+    }
+
+    /**
+     * Renames a job or folder, and every item inside it.
+     */
+    static final class RenameJob extends Operation {
+        private final String oldFullName;
+        private final String newFullName;
+
+        RenameJob(@NonNull String oldFullName, @NonNull String newFullName) {
+            this.oldFullName = oldFullName;
+            this.newFullName = newFullName;
+        }
+
+        /**
+         * Renames the usages, merging them into the usages already recorded under the new names, if any, e.g. of a job
+         * deleted and recreated with the same name before its deletion was applied.
+         */
+        @Override
+        void apply(@NonNull Connection connection, @NonNull String instanceId, @NonNull Set<String> changedIds)
+                throws SQLException {
+            // SUBSTRING counts characters, not UTF-16 code units.
+            int suffixStart = oldFullName.codePointCount(0, oldFullName.length()) + 1;
+            try (PreparedStatement preparedStatement =
+                    LatencyBudget.CLEANUP.prepareStatement(connection, Queries.RENAME_JOB_USAGES)) {
+                preparedStatement.setString(1, instanceId);
+                preparedStatement.setString(2, oldFullName);
+                preparedStatement.setString(3, descendantsPattern(oldFullName));
+                preparedStatement.setString(4, newFullName);
+                preparedStatement.setInt(5, suffixStart);
+                collectIds(preparedStatement, changedIds);
+            }
+            try (PreparedStatement preparedStatement =
+                    LatencyBudget.CLEANUP.prepareStatement(connection, Queries.RENAME_ORIGINAL_JOB)) {
+                preparedStatement.setString(1, newFullName);
+                preparedStatement.setInt(2, suffixStart);
+                preparedStatement.setString(3, instanceId);
+                preparedStatement.setString(4, oldFullName);
+                preparedStatement.setString(5, descendantsPattern(oldFullName));
+                collectIds(preparedStatement, changedIds);
+            }
+        }
+
+        @Override
+        boolean covers(@NonNull Operation operation) {
+            if (!(operation instanceof RenameJob)) {
+                return false;
+            }
+            RenameJob rename = (RenameJob) operation;
+            return rename.oldFullName.startsWith(oldFullName + "/")
+                    && rename.newFullName.equals(newFullName + rename.oldFullName.substring(oldFullName.length()));
+        }
+
+        @Override
+        public String toString() {
+            return "rename of " + oldFullName + " to " + newFullName;
+        }
+    }
+
+    /**
+     * Deletes the usages of a job or folder, and of every item inside it.
+     */
+    static final class DeleteJob extends Operation {
+        private final String fullName;
+
+        DeleteJob(@NonNull String fullName) {
+            this.fullName = fullName;
+        }
+
+        @Override
+        void apply(@NonNull Connection connection, @NonNull String instanceId, @NonNull Set<String> changedIds)
+                throws SQLException {
+            try (PreparedStatement preparedStatement =
+                    LatencyBudget.CLEANUP.prepareStatement(connection, Queries.DELETE_JOB_USAGES)) {
+                preparedStatement.setString(1, instanceId);
+                preparedStatement.setString(2, fullName);
+                preparedStatement.setString(3, descendantsPattern(fullName));
+                collectIds(preparedStatement, changedIds);
+            }
+        }
+
+        @Override
+        boolean covers(@NonNull Operation operation) {
+            if (operation instanceof DeleteJob) {
+                String deletedFullName = ((DeleteJob) operation).fullName;
+                return deletedFullName.equals(fullName) || deletedFullName.startsWith(fullName + "/");
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "deletion of " + fullName;
+        }
+    }
+
+    /**
+     * Deletes the usages of builds of a job.
+     */
+    static final class DeleteBuilds extends Operation {
+        private final String fullName;
+        private final List<Integer> buildNumbers = new ArrayList<>();
+
+        DeleteBuilds(@NonNull String fullName, int buildNumber) {
+            this.fullName = fullName;
+            buildNumbers.add(buildNumber);
+        }
+
+        @Override
+        void apply(@NonNull Connection connection, @NonNull String instanceId, @NonNull Set<String> changedIds)
+                throws SQLException {
+            try (PreparedStatement preparedStatement =
+                    LatencyBudget.CLEANUP.prepareStatement(connection, Queries.DELETE_BUILD_USAGES)) {
+                preparedStatement.setString(1, instanceId);
+                preparedStatement.setString(2, fullName);
+                preparedStatement.setArray(3, connection.createArrayOf("int4", buildNumbers.toArray()));
+                collectIds(preparedStatement, changedIds);
+            }
+        }
+
+        @Override
+        boolean merge(@NonNull Operation operation) {
+            if (operation instanceof DeleteBuilds && ((DeleteBuilds) operation).fullName.equals(fullName)) {
+                buildNumbers.addAll(((DeleteBuilds) operation).buildNumbers);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "deletion of builds " + buildNumbers + " of " + fullName;
+        }
+    }
+
+    @Extension
+    @Restricted(NoExternalUse.class)
+    public static final class ItemListenerImpl extends ItemListener {
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            enqueue(new RenameJob(oldFullName, newFullName));
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            enqueue(new DeleteJob(item.getFullName()));
+        }
+    }
+
+    @Extension
+    @Restricted(NoExternalUse.class)
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            enqueue(new DeleteBuilds(run.getParent().getFullName(), run.getNumber()));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Fingerprint;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lightweight view of a stored fingerprint, loaded by
+ * {@link PostgreSQLFingerprintStorage#loadMetadata(java.util.Collection)} from the {@code FINGERPRINT} table alone,
+ * for callers which mostly need its file name, timestamp or original build.
+ * <p>
+ * The usages are only loaded on first access, together with the usages of all the other fingerprints loaded by the
+ * same call which have not been loaded yet, so that rendering many of them costs a single extra query. Facets are
+ * only available from the fully loaded {@link #getFingerprint()}.
+ */
+public final class FingerprintMetadata {
+
+    private final PostgreSQLFingerprintStorage storage;
+    private final String id;
+    private final String fileName;
+    private final Date timestamp;
+    private final Fingerprint.BuildPtr original;
+    private final Batch batch;
+    private Map<String, Fingerprint.RangeSet> usages;
+
+    FingerprintMetadata(
+            @NonNull PostgreSQLFingerprintStorage storage,
+            @NonNull String id,
+            @NonNull String fileName,
+            @NonNull Date timestamp,
+            @CheckForNull Fingerprint.BuildPtr original,
+            @NonNull Batch batch) {
+        this.storage = storage;
+        this.id = id;
+        this.fileName = fileName;
+        this.timestamp = new Date(timestamp.getTime());
+        this.original = original;
+        this.batch = batch;
+        synchronized (batch) {
+            batch.members.add(this);
+        }
+    }
+
+    /**
+     * Returns the metadata of the given fingerprint, whose usages are already known.
+     */
+    static @NonNull FingerprintMetadata of(
+            @NonNull PostgreSQLFingerprintStorage storage, @NonNull Fingerprint fingerprint) {
+        FingerprintMetadata metadata = new FingerprintMetadata(
+                storage,
+                fingerprint.getHashString(),
+                fingerprint.getFileName(),
+                fingerprint.getTimestamp(),
+                fingerprint.getOriginal(),
+                new Batch());
+        metadata.usages = Collections.unmodifiableMap(fingerprint.getUsages());
+        return metadata;
+    }
+
+    public @NonNull String getHashString() {
+        return id;
+    }
+
+    public @NonNull String getFileName() {
+        return fileName;
+    }
+
+    public @NonNull Date getTimestamp() {
+        return new Date(timestamp.getTime());
+    }
+
+    public @CheckForNull Fingerprint.BuildPtr getOriginal() {
+        return original;
+    }
+
+    /**
+     * Returns the builds which used the fingerprint, by job, loading them on first access.
+     */
+    public @NonNull Map<String, Fingerprint.RangeSet> getUsages() throws IOException {
+        synchronized (batch) {
+            if (usages == null) {
+                List<String> ids = new ArrayList<>();
+                for (FingerprintMetadata member : batch.members) {
+                    if (member.usages == null) {
+                        ids.add(member.id);
+                    }
+                }
+                Map<String, Map<String, Fingerprint.RangeSet>> loadedUsages = storage.loadUsages(ids);
+                for (FingerprintMetadata member : batch.members) {
+                    if (member.usages == null) {
+                        member.usages = loadedUsages.getOrDefault(member.id, Collections.emptyMap());
+                    }
+                }
+            }
+            return usages;
+        }
+    }
+
+    /**
+     * Loads the complete fingerprint, including its facets, or returns {@code null} if it has been deleted since.
+     */
+    public @CheckForNull Fingerprint getFingerprint() throws IOException {
+        return storage.load(id);
+    }
+
+    /**
+     * The fingerprints loaded by a single call, whose usages are loaded together.
+     */
+    static final class Batch {
+        private final List<FingerprintMetadata> members = new ArrayList<>();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Optional local cache of serialized fingerprints in a memory-mapped file under {@code JENKINS_HOME}, which keeps hot
+ * fingerprints off the heap and survives restarts.
+ * <p>
+ * The file is divided into fixed-size slots, grouped into sets of {@link #WAYS} slots. A fingerprint can only be
+ * cached in the set its id hashes to, evicting the least recently used slot of the set. Each slot holds the id and
+ * the compressed fingerprint, guarded by a checksum so that slots torn by a crash are ignored. Filled slots are not
+ * forced to disk, as losing them only costs a load from PostgreSQL, but invalidations are, as losing them would serve a
+ * stale fingerprint after a crash.
+ * <p>
+ * Entries are invalidated by every write of their fingerprint, before and after it reaches PostgreSQL. Every
+ * invalidation bumps a generation counter, so that a fingerprint read from PostgreSQL concurrently with a write is
+ * never cached over the state written.
+ * <p>
+ * The cache is claimed with a key identifying the databases it caches, stored next to the file. Claiming it with
+ * another key clears it.
+ */
+final class FingerprintPageCache {
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintPageCache.class.getName());
+
+    /**
+     * Size of the cache file in megabytes, or {@code 0} to disable the cache.
+     */
+    static final int SIZE_MEGABYTES = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".pageCache.sizeMegabytes", 0);
+
+    /**
+     * Size of a slot in bytes. Fingerprints which do not fit in a slot once compressed are not cached.
+     */
+    static final int SLOT_BYTES = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".pageCache.slotBytes", 16 * 1024);
+
+    static final int WAYS = 4;
+
+    private static final int EMPTY = 0;
+    private static final int FULL = 1;
+
+    private static final int STATE_OFFSET = 0;
+    private static final int LENGTH_OFFSET = 4;
+    private static final int TICK_OFFSET = 8;
+    private static final int CHECKSUM_OFFSET = 16;
+    private static final int ID_LENGTH_OFFSET = 24;
+    private static final int ID_OFFSET = 32;
+    private static final int MAX_ID_BYTES = 64;
+    private static final int PAYLOAD_OFFSET = ID_OFFSET + MAX_ID_BYTES;
+
+    private static FingerprintPageCache INSTANCE;
+    private static boolean opened;
+
+    private final MappedByteBuffer buffer;
+    private final Path keyPath;
+    private final int slotBytes;
+    private final int sets;
+    private long tick;
+    private long generation;
+    private String key;
+
+    FingerprintPageCache(@NonNull Path path, int sizeBytes, int slotBytes) throws IOException {
+        if (slotBytes <= PAYLOAD_OFFSET || sizeBytes < slotBytes * WAYS) {
+            throw new IllegalArgumentException("Page cache of " + sizeBytes + " bytes cannot hold " + WAYS
+                    + " slots of " + slotBytes + " bytes");
+        }
+        this.slotBytes = slotBytes;
+        this.sets = sizeBytes / (slotBytes * WAYS);
+        Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(
+                path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = (long) sets * WAYS * slotBytes;
+            if (channel.size() != size) {
+                // Slot geometry changed, start over.
+                channel.truncate(0);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        for (int slot = 0; slot < sets * WAYS; slot++) {
+            tick = Math.max(tick, buffer.getLong(slot * slotBytes + TICK_OFFSET));
+        }
+        keyPath = path.resolveSibling(path.getFileName() + ".key");
+        if (Files.isRegularFile(keyPath)) {
+            key = new String(Files.readAllBytes(keyPath), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns the page cache of this Jenkins instance, opening it on first use, or {@code null} if it is disabled or
+     * could not be opened.
+     */
+    static synchronized @CheckForNull FingerprintPageCache get() {
+        if (!opened) {
+            opened = true;
+            if (SIZE_MEGABYTES > 0) {
+                File file = new File(Jenkins.get().getRootDir(), "postgresql-fingerprint-storage/page-cache.bin");
+                try {
+                    INSTANCE = new FingerprintPageCache(
+                            file.toPath(), Math.min(SIZE_MEGABYTES, 1024) * 1024 * 1024, SLOT_BYTES);
+                } catch (IOException | IllegalArgumentException e) {
+                    LOGGER.log(Level.WARNING, "Failed to open fingerprint page cache, disabling it: " + file, e);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Claims the cache for the databases identified by the given key, clearing it if it was filled for others.
+     */
+    synchronized void claim(@NonNull String key) {
+        if (key.equals(this.key)) {
+            return;
+        }
+        clear();
+        try {
+            Files.write(keyPath, key.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The cache is cleared again when next opened.
+            LOGGER.log(Level.WARNING, "Failed to write fingerprint page cache key: " + keyPath, e);
+        }
+        this.key = key;
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Returns the cached serialized fingerprint with the given id, if any.
+     */
+    synchronized @CheckForNull String get(@NonNull String id) {
+        int slot = find(id);
+        if (slot < 0) {
+            return null;
+        }
+        int base = slot * slotBytes;
+        int length = buffer.getInt(base + LENGTH_OFFSET);
+        if (length < 0 || length > slotBytes - PAYLOAD_OFFSET) {
+            buffer.putInt(base + STATE_OFFSET, EMPTY);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buffer.position(base + PAYLOAD_OFFSET);
+        buffer.get(payload);
+        if (checksum(id, payload) != buffer.getLong(base + CHECKSUM_OFFSET)) {
+            buffer.putInt(base + STATE_OFFSET, EMPTY);
+            return null;
+        }
+        String fingerprintJSON;
+        try {
+            fingerprintJSON = DataConversion.decompressFacetEntry(payload);
+        } catch (UncheckedIOException e) {
+            buffer.putInt(base + STATE_OFFSET, EMPTY);
+            return null;
+        }
+        buffer.putLong(base + TICK_OFFSET, ++tick);
+        return fingerprintJSON;
+    }
+
+    /**
+     * Caches the given serialized fingerprint, read from PostgreSQL, unless it was invalidated since
+     * {@code generation}.
+     */
+    synchronized void putIfUnchanged(@NonNull String id, @NonNull String fingerprintJSON, long generation) {
+        if (this.generation != generation) {
+            return;
+        }
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = DataConversion.compressFacetEntry(fingerprintJSON);
+        if (idBytes.length > MAX_ID_BYTES || payload.length > slotBytes - PAYLOAD_OFFSET) {
+            return;
+        }
+        int slot = find(id);
+        if (slot < 0) {
+            slot = victim(id);
+        }
+        int base = slot * slotBytes;
+        buffer.putInt(base + STATE_OFFSET, EMPTY);
+        buffer.putInt(base + LENGTH_OFFSET, payload.length);
+        buffer.putLong(base + TICK_OFFSET, ++tick);
+        buffer.putLong(base + CHECKSUM_OFFSET, checksum(id, payload));
+        buffer.putInt(base + ID_LENGTH_OFFSET, idBytes.length);
+        buffer.position(base + ID_OFFSET);
+        buffer.put(idBytes);
+        buffer.position(base + PAYLOAD_OFFSET);
+        buffer.put(payload);
+        buffer.putInt(base + STATE_OFFSET, FULL);
+    }
+
+    /**
+     * Removes the fingerprint with the given id, which is being written.
+     */
+    synchronized void invalidate(@NonNull String id) {
+        generation++;
+        int slot = find(id);
+        if (slot >= 0) {
+            buffer.putInt(slot * slotBytes + STATE_OFFSET, EMPTY);
+            buffer.force(slot * slotBytes + STATE_OFFSET, Integer.BYTES);
+        }
+    }
+
+    /**
+     * Removes all fingerprints.
+     */
+    synchronized void clear() {
+        generation++;
+        for (int slot = 0; slot < sets * WAYS; slot++) {
+            buffer.putInt(slot * slotBytes + STATE_OFFSET, EMPTY);
+        }
+        buffer.force();
+    }
+
+    private int firstSlot(@NonNull String id) {
+        return Math.floorMod(id.hashCode(), sets) * WAYS;
+    }
+
+    private int find(@NonNull String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int first = firstSlot(id);
+        for (int slot = first; slot < first + WAYS; slot++) {
+            int base = slot * slotBytes;
+            if (buffer.getInt(base + STATE_OFFSET) == FULL
+                    && buffer.getInt(base + ID_LENGTH_OFFSET) == idBytes.length
+                    && idEquals(base, idBytes)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean idEquals(int base, @NonNull byte[] idBytes) {
+        for (int i = 0; i < idBytes.length; i++) {
+            if (buffer.get(base + ID_OFFSET + i) != idBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an empty slot of the set of the given id, or else its least recently used slot.
+     */
+    private int victim(@NonNull String id) {
+        int first = firstSlot(id);
+        int victim = first;
+        long oldestTick = Long.MAX_VALUE;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            int base = slot * slotBytes;
+            if (buffer.getInt(base + STATE_OFFSET) != FULL) {
+                return slot;
+            }
+            long slotTick = buffer.getLong(base + TICK_OFFSET);
+            if (slotTick < oldestTick) {
+                oldestTick = slotTick;
+                victim = slot;
+            }
+        }
+        return victim;
+    }
+
+    private static long checksum(@NonNull String id, @NonNull byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(id.getBytes(StandardCharsets.UTF_8));
+        crc32.update(payload);
+        return crc32.getValue();
+    }
+}
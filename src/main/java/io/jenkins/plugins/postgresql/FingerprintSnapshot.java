@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.model.Fingerprint;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jenkins.model.FingerprintFacet;
+
+/**
+ * Remembers the state of a fingerprint as it was last written to or read from PostgreSQL, so that a later save which
+ * only records new usages can be written incrementally instead of rewriting the whole fingerprint, and a save which
+ * changes nothing can be skipped.
+ */
+final class FingerprintSnapshot {
+
+    private final String header;
+    private final Map<String, Fingerprint.RangeSet> usages;
+    private final byte[] digest;
+
+    private FingerprintSnapshot(@NonNull String header, @NonNull Map<String, Fingerprint.RangeSet> usages) {
+        this.header = header;
+        this.usages = usages;
+        this.digest = digest(header, usages);
+    }
+
+    /**
+     * Captures the current state of the given fingerprint.
+     */
+    static @NonNull FingerprintSnapshot of(@NonNull Fingerprint fingerprint) {
+        StringBuilder header = new StringBuilder();
+        header.append(fingerprint.getTimestamp().getTime()).append('\n');
+        header.append(fingerprint.getFileName()).append('\n');
+
+        Fingerprint.BuildPtr original = fingerprint.getOriginal();
+        if (original != null) {
+            header.append(original.getName()).append('#').append(original.getNumber());
+        }
+        header.append('\n');
+
+        for (FingerprintFacet fingerprintFacet : fingerprint.getPersistedFacets()) {
+            header.append(XStreamHandler.getXStream().toXML(fingerprintFacet)).append('\n');
+        }
+
+        Map<String, Fingerprint.RangeSet> usages = new HashMap<>();
+        for (Map.Entry<String, Fingerprint.RangeSet> usage : fingerprint.getUsages().entrySet()) {
+            Fingerprint.RangeSet rangeSet = new Fingerprint.RangeSet();
+            rangeSet.add(usage.getValue());
+            usages.put(usage.getKey(), rangeSet);
+        }
+
+        return new FingerprintSnapshot(header.toString(), Collections.unmodifiableMap(usages));
+    }
+
+    /**
+     * Returns the SHA-256 digest of the metadata, usage ranges and persisted facets of the fingerprint, as stored in
+     * the {@code STATE_DIGEST} column.
+     */
+    @NonNull
+    byte[] getDigest() {
+        return digest.clone();
+    }
+
+    private static @NonNull byte[] digest(@NonNull String header, @NonNull Map<String, Fingerprint.RangeSet> usages) {
+        StringBuilder state = new StringBuilder(header);
+        for (Map.Entry<String, Fingerprint.RangeSet> usage : new TreeMap<>(usages).entrySet()) {
+            state.append(usage.getKey());
+            for (Fingerprint.Range range : usage.getValue().getRanges()) {
+                state.append(' ').append(range.getStart()).append('-').append(range.getEnd());
+            }
+            state.append('\n');
+        }
+        return Util.getSHA256DigestOf(state.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the usages recorded in {@code current} which are missing from this snapshot, or {@code null} if
+     * {@code current} differs from this snapshot in anything other than added usages.
+     */
+    @CheckForNull
+    List<Usage> newUsagesIn(@NonNull FingerprintSnapshot current) {
+        if (!header.equals(current.header)) {
+            return null;
+        }
+
+        for (Map.Entry<String, Fingerprint.RangeSet> usage : usages.entrySet()) {
+            Fingerprint.RangeSet currentRangeSet = current.usages.get(usage.getKey());
+            if (currentRangeSet == null) {
+                return null;
+            }
+            for (int buildNumber : usage.getValue().listNumbers()) {
+                if (!currentRangeSet.includes(buildNumber)) {
+                    return null;
+                }
+            }
+        }
+
+        List<Usage> newUsages = new ArrayList<>();
+        for (Map.Entry<String, Fingerprint.RangeSet> usage : current.usages.entrySet()) {
+            Fingerprint.RangeSet previousRangeSet = usages.get(usage.getKey());
+            for (int buildNumber : usage.getValue().listNumbers()) {
+                if (previousRangeSet == null || !previousRangeSet.includes(buildNumber)) {
+                    newUsages.add(new Usage(usage.getKey(), buildNumber));
+                }
+            }
+        }
+        return newUsages;
+    }
+
+    /**
+     * Bounded, least recently used cache of the snapshots of recently saved or loaded fingerprints, and of the digests
+     * of a larger number of them.
+     * <p>
+     * Every write bumps a generation counter, so that a snapshot read from PostgreSQL concurrently with a write is
+     * never cached over the state written.
+     */
+    static final class Cache {
+
+        private final Map<String, FingerprintSnapshot> snapshots;
+        private final Map<String, byte[]> digests;
+        private long generation;
+
+        Cache(int maximumSize, int maximumDigests) {
+            snapshots = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FingerprintSnapshot> eldest) {
+                    return size() > maximumSize;
+                }
+            };
+            int digestCapacity = Math.max(maximumSize, maximumDigests);
+            digests = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > digestCapacity;
+                }
+            };
+        }
+
+        synchronized long generation() {
+            return generation;
+        }
+
+        /**
+         * Removes and returns the snapshot of the fingerprint with the given id, which is about to be written.
+         */
+        synchronized @CheckForNull FingerprintSnapshot take(@NonNull String id) {
+            generation++;
+            digests.remove(id);
+            return snapshots.remove(id);
+        }
+
+        /**
+         * Returns true if the given snapshot of the fingerprint with the given id is known to be stored already.
+         */
+        synchronized boolean isStored(@NonNull String id, @NonNull FingerprintSnapshot snapshot) {
+            return Arrays.equals(digests.get(id), snapshot.digest);
+        }
+
+        /**
+         * Caches the snapshot of a fingerprint that has just been written.
+         */
+        synchronized void put(@NonNull String id, @NonNull FingerprintSnapshot snapshot) {
+            generation++;
+            snapshots.put(id, snapshot);
+            digests.put(id, snapshot.digest);
+        }
+
+        /**
+         * Forgets every snapshot and digest, when writes reported as committed may not have been stored.
+         */
+        synchronized void clear() {
+            generation++;
+            snapshots.clear();
+            digests.clear();
+        }
+
+        /**
+         * Caches the snapshot of a fingerprint that has been read, unless a write happened since {@code generation}.
+         */
+        synchronized void putIfUnchanged(@NonNull String id, @NonNull FingerprintSnapshot snapshot, long generation) {
+            if (this.generation == generation) {
+                snapshots.put(id, snapshot);
+                digests.put(id, snapshot.digest);
+            }
+        }
+    }
+
+    /**
+     * A single (job, build) usage of a fingerprint.
+     */
+    static final class Usage {
+        final String job;
+        final int buildNumber;
+
+        Usage(@NonNull String job, int buildNumber) {
+            this.job = job;
+            this.buildNumber = buildNumber;
+        }
+    }
+}
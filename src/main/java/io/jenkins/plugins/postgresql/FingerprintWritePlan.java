@@ -0,0 +1,504 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.model.Fingerprint;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import jenkins.model.FingerprintFacet;
+import jenkins.util.SystemProperties;
+import org.json.JSONObject;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+/**
+ * Immutable plan of the rows making up a fingerprint, prepared without database access so that the transaction
+ * rewriting the fingerprint only runs SQL and holds its locks as briefly as possible.
+ */
+final class FingerprintWritePlan {
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintWritePlan.class.getName());
+
+    /**
+     * Number of usage rows from which they are written with {@code COPY} rather than batched inserts, or {@code 0} to
+     * always use inserts.
+     */
+    private static final int COPY_THRESHOLD = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".copyThreshold", 10_000);
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final String id;
+    private final Timestamp timestamp;
+    private final String fileName;
+    private final String originalJobName;
+    private final Integer originalJobBuildNumber;
+    private final List<JobUsages> usages;
+    private final List<FacetRow> facets;
+    private final byte[] stateDigest;
+
+    private FingerprintWritePlan(
+            @NonNull String id,
+            @NonNull Timestamp timestamp,
+            @NonNull String fileName,
+            @CheckForNull String originalJobName,
+            @CheckForNull Integer originalJobBuildNumber,
+            @NonNull List<JobUsages> usages,
+            @NonNull List<FacetRow> facets,
+            @NonNull byte[] stateDigest) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.fileName = fileName;
+        this.originalJobName = originalJobName;
+        this.originalJobBuildNumber = originalJobBuildNumber;
+        this.usages = Collections.unmodifiableList(usages);
+        this.facets = Collections.unmodifiableList(facets);
+        this.stateDigest = stateDigest;
+    }
+
+    /**
+     * Serializes the given fingerprint into the rows to write. Facet entries of at least
+     * {@code facetCompressionThreshold} bytes are compressed, unless the threshold is {@code 0}.
+     */
+    static @NonNull FingerprintWritePlan of(@NonNull Fingerprint fingerprint, int facetCompressionThreshold) {
+        return of(fingerprint, facetCompressionThreshold, FingerprintSnapshot.of(fingerprint));
+    }
+
+    /**
+     * Serializes the given fingerprint into the rows to write, recording the digest of the given snapshot of it.
+     */
+    static @NonNull FingerprintWritePlan of(
+            @NonNull Fingerprint fingerprint, int facetCompressionThreshold, @NonNull FingerprintSnapshot snapshot) {
+        List<JobUsages> usages = new ArrayList<>();
+        Map<String, Fingerprint.RangeSet> fingerprintUsages = fingerprint.getUsages();
+        if (fingerprintUsages != null) {
+            for (Map.Entry<String, Fingerprint.RangeSet> usage : fingerprintUsages.entrySet()) {
+                List<Fingerprint.Range> ranges = usage.getValue().getRanges();
+                int[] starts = new int[ranges.size()];
+                int[] ends = new int[ranges.size()];
+                for (int i = 0; i < ranges.size(); i++) {
+                    starts[i] = ranges.get(i).getStart();
+                    ends[i] = ranges.get(i).getEnd();
+                }
+                usages.add(new JobUsages(usage.getKey(), starts, ends));
+            }
+        }
+
+        List<FacetRow> facets = new ArrayList<>();
+        for (FingerprintFacet fingerprintFacet : fingerprint.getPersistedFacets()) {
+            JSONObject fingerprintFacetJSON = new JSONObject(XStreamHandler.getXStream().toXML(fingerprintFacet));
+            String fingerprintFacetName = fingerprintFacetJSON.keys().next();
+            String fingerprintFacetEntry =
+                    fingerprintFacetJSON.getJSONObject(fingerprintFacetName).toString();
+
+            byte[] fingerprintFacetEntryBytes = fingerprintFacetEntry.getBytes(StandardCharsets.UTF_8);
+            if (facetCompressionThreshold > 0 && fingerprintFacetEntryBytes.length >= facetCompressionThreshold) {
+                facets.add(new FacetRow(
+                        fingerprintFacetName,
+                        fingerprintFacetEntry,
+                        DataConversion.compressFacetEntry(fingerprintFacetEntry),
+                        fingerprintFacet.isFingerprintDeletionBlocked()));
+            } else {
+                facets.add(new FacetRow(
+                        fingerprintFacetName,
+                        fingerprintFacetEntry,
+                        null,
+                        fingerprintFacet.isFingerprintDeletionBlocked()));
+            }
+        }
+
+        Fingerprint.BuildPtr original = fingerprint.getOriginal();
+        return new FingerprintWritePlan(
+                fingerprint.getHashString(),
+                new Timestamp(fingerprint.getTimestamp().getTime()),
+                fingerprint.getFileName(),
+                original != null ? original.getName() : null,
+                original != null ? original.getNumber() : null,
+                usages,
+                facets,
+                snapshot.getDigest());
+    }
+
+    /**
+     * Replaces the stored fingerprint with the planned rows, inside the current transaction of the given connection.
+     */
+    void write(@NonNull Connection connection, @NonNull String instanceId) throws SQLException {
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.SAVE.prepareStatement(connection, Queries.DELETE_FINGERPRINT)) {
+            preparedStatement.setString(1, id);
+            preparedStatement.setString(2, instanceId);
+            preparedStatement.executeUpdate();
+        }
+
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.SAVE.prepareStatement(connection, Queries.INSERT_FINGERPRINT)) {
+            preparedStatement.setString(1, id);
+            preparedStatement.setString(2, instanceId);
+            preparedStatement.setTimestamp(3, timestamp);
+            preparedStatement.setString(4, fileName);
+            if (originalJobBuildNumber != null) {
+                preparedStatement.setString(5, originalJobName);
+                preparedStatement.setInt(6, originalJobBuildNumber);
+            } else {
+                preparedStatement.setNull(5, Types.NULL);
+                preparedStatement.setNull(6, Types.NULL);
+            }
+            preparedStatement.setBytes(7, stateDigest);
+            preparedStatement.executeUpdate();
+        }
+
+        if (shouldCopy(usageCount()) && copyUsages(connection, instanceId, Collections.singletonList(this))) {
+            LOGGER.fine(() -> "Copied usages of fingerprint: " + id);
+        } else if (!usages.isEmpty()) {
+            try (PreparedStatement preparedStatement =
+                    LatencyBudget.SAVE.prepareStatement(connection, Queries.INSERT_FINGERPRINT_JOB_BUILD_RELATION)) {
+                for (JobUsages jobUsages : usages) {
+                    for (int r = 0; r < jobUsages.starts.length; r++) {
+                        for (int buildNumber = jobUsages.starts[r]; buildNumber < jobUsages.ends[r]; buildNumber++) {
+                            preparedStatement.setString(1, id);
+                            preparedStatement.setString(2, instanceId);
+                            preparedStatement.setString(3, jobUsages.job);
+                            preparedStatement.setInt(4, buildNumber);
+                            preparedStatement.addBatch();
+                        }
+                    }
+                }
+                preparedStatement.executeBatch();
+            }
+        }
+
+        if (!facets.isEmpty()) {
+            try (PreparedStatement preparedStatement =
+                            LatencyBudget.SAVE.prepareStatement(connection, Queries.INSERT_FINGERPRINT_FACET_RELATION);
+                    PreparedStatement compressedPreparedStatement = LatencyBudget.SAVE.prepareStatement(
+                            connection, Queries.INSERT_FINGERPRINT_FACET_RELATION_COMPRESSED)) {
+                boolean hasFacets = false;
+                boolean hasCompressedFacets = false;
+                for (FacetRow facet : facets) {
+                    if (facet.compressedEntry != null) {
+                        compressedPreparedStatement.setString(1, id);
+                        compressedPreparedStatement.setString(2, instanceId);
+                        compressedPreparedStatement.setString(3, facet.name);
+                        compressedPreparedStatement.setBytes(4, facet.compressedEntryHash);
+                        compressedPreparedStatement.setBytes(5, facet.compressedEntry);
+                        compressedPreparedStatement.setBoolean(6, facet.deletionBlocked);
+                        compressedPreparedStatement.addBatch();
+                        hasCompressedFacets = true;
+                    } else {
+                        preparedStatement.setString(1, id);
+                        preparedStatement.setString(2, instanceId);
+                        preparedStatement.setString(3, facet.name);
+                        preparedStatement.setString(4, facet.entry);
+                        preparedStatement.setBoolean(5, facet.deletionBlocked);
+                        preparedStatement.addBatch();
+                        hasFacets = true;
+                    }
+                }
+                if (hasFacets) {
+                    preparedStatement.executeBatch();
+                }
+                if (hasCompressedFacets) {
+                    compressedPreparedStatement.executeBatch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the stored fingerprints with the given planned rows, inside the current transaction of the given
+     * connection. The rows are written with array-bound statements, one per table and chunk of {@code chunkSize}
+     * fingerprints.
+     */
+    static void writeAll(
+            @NonNull Connection connection,
+            @NonNull String instanceId,
+            @NonNull List<FingerprintWritePlan> writePlans,
+            int chunkSize)
+            throws SQLException {
+        for (int from = 0; from < writePlans.size(); from += chunkSize) {
+            writeChunk(connection, instanceId, writePlans.subList(from, Math.min(from + chunkSize, writePlans.size())));
+        }
+    }
+
+    private static void writeChunk(
+            @NonNull Connection connection, @NonNull String instanceId, @NonNull List<FingerprintWritePlan> writePlans)
+            throws SQLException {
+        int size = writePlans.size();
+        String[] ids = new String[size];
+        Timestamp[] timestamps = new Timestamp[size];
+        String[] fileNames = new String[size];
+        String[] originalJobNames = new String[size];
+        Integer[] originalJobBuildNumbers = new Integer[size];
+        String[] stateDigests = new String[size];
+        int usageCount = 0;
+        for (int i = 0; i < size; i++) {
+            FingerprintWritePlan writePlan = writePlans.get(i);
+            ids[i] = writePlan.id;
+            timestamps[i] = writePlan.timestamp;
+            fileNames[i] = writePlan.fileName;
+            originalJobNames[i] = writePlan.originalJobName;
+            originalJobBuildNumbers[i] = writePlan.originalJobBuildNumber;
+            stateDigests[i] = Util.toHexString(writePlan.stateDigest);
+            usageCount += writePlan.usageCount();
+        }
+
+        deleteAll(connection, instanceId, ids, LatencyBudget.SAVE);
+
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.SAVE.prepareStatement(connection, Queries.INSERT_FINGERPRINTS)) {
+            preparedStatement.setString(1, instanceId);
+            preparedStatement.setArray(2, connection.createArrayOf("varchar", ids));
+            preparedStatement.setArray(3, connection.createArrayOf("timestamp", timestamps));
+            preparedStatement.setArray(4, connection.createArrayOf("varchar", fileNames));
+            preparedStatement.setArray(5, connection.createArrayOf("varchar", originalJobNames));
+            preparedStatement.setArray(6, connection.createArrayOf("int4", originalJobBuildNumbers));
+            preparedStatement.setArray(7, connection.createArrayOf("varchar", stateDigests));
+            preparedStatement.executeUpdate();
+        }
+
+        if (shouldCopy(usageCount) && copyUsages(connection, instanceId, writePlans)) {
+            LOGGER.fine(() -> "Copied usages of " + writePlans.size() + " fingerprints");
+        } else if (usageCount > 0) {
+            String[] usageIds = new String[usageCount];
+            String[] jobs = new String[usageCount];
+            Integer[] buildNumbers = new Integer[usageCount];
+            int i = 0;
+            for (FingerprintWritePlan writePlan : writePlans) {
+                for (JobUsages jobUsages : writePlan.usages) {
+                    for (int r = 0; r < jobUsages.starts.length; r++) {
+                        for (int buildNumber = jobUsages.starts[r]; buildNumber < jobUsages.ends[r]; buildNumber++) {
+                            usageIds[i] = writePlan.id;
+                            jobs[i] = jobUsages.job;
+                            buildNumbers[i] = buildNumber;
+                            i++;
+                        }
+                    }
+                }
+            }
+            try (PreparedStatement preparedStatement =
+                    LatencyBudget.SAVE.prepareStatement(connection, Queries.INSERT_FINGERPRINT_JOB_BUILD_RELATIONS)) {
+                preparedStatement.setString(1, instanceId);
+                preparedStatement.setArray(2, connection.createArrayOf("varchar", usageIds));
+                preparedStatement.setArray(3, connection.createArrayOf("varchar", jobs));
+                preparedStatement.setArray(4, connection.createArrayOf("int4", buildNumbers));
+                preparedStatement.executeUpdate();
+            }
+        }
+
+        List<String> facetIds = new ArrayList<>();
+        List<String> facetNames = new ArrayList<>();
+        List<String> facetEntries = new ArrayList<>();
+        List<Boolean> facetDeletionBlocked = new ArrayList<>();
+        try (PreparedStatement compressedPreparedStatement = LatencyBudget.SAVE.prepareStatement(
+                connection, Queries.INSERT_FINGERPRINT_FACET_RELATION_COMPRESSED)) {
+            boolean hasCompressedFacets = false;
+            for (FingerprintWritePlan writePlan : writePlans) {
+                for (FacetRow facet : writePlan.facets) {
+                    if (facet.compressedEntry != null) {
+                        compressedPreparedStatement.setString(1, writePlan.id);
+                        compressedPreparedStatement.setString(2, instanceId);
+                        compressedPreparedStatement.setString(3, facet.name);
+                        compressedPreparedStatement.setBytes(4, facet.compressedEntryHash);
+                        compressedPreparedStatement.setBytes(5, facet.compressedEntry);
+                        compressedPreparedStatement.setBoolean(6, facet.deletionBlocked);
+                        compressedPreparedStatement.addBatch();
+                        hasCompressedFacets = true;
+                    } else {
+                        facetIds.add(writePlan.id);
+                        facetNames.add(facet.name);
+                        facetEntries.add(facet.entry);
+                        facetDeletionBlocked.add(facet.deletionBlocked);
+                    }
+                }
+            }
+            if (hasCompressedFacets) {
+                compressedPreparedStatement.executeBatch();
+            }
+        }
+
+        if (!facetIds.isEmpty()) {
+            try (PreparedStatement preparedStatement =
+                    LatencyBudget.SAVE.prepareStatement(connection, Queries.INSERT_FINGERPRINT_FACET_RELATIONS)) {
+                preparedStatement.setString(1, instanceId);
+                preparedStatement.setArray(2, connection.createArrayOf("varchar", facetIds.toArray()));
+                preparedStatement.setArray(3, connection.createArrayOf("varchar", facetNames.toArray()));
+                preparedStatement.setArray(4, connection.createArrayOf("text", facetEntries.toArray()));
+                preparedStatement.setArray(5, connection.createArrayOf("bool", facetDeletionBlocked.toArray()));
+                preparedStatement.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Deletes the fingerprints with the given ids, inside the current transaction of the given connection.
+     */
+    static void deleteAll(
+            @NonNull Connection connection,
+            @NonNull String instanceId,
+            @NonNull String[] ids,
+            @NonNull LatencyBudget budget)
+            throws SQLException {
+        try (PreparedStatement preparedStatement = budget.prepareStatement(connection, Queries.DELETE_FINGERPRINTS)) {
+            preparedStatement.setString(1, instanceId);
+            preparedStatement.setArray(2, connection.createArrayOf("varchar", ids));
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    private static boolean shouldCopy(int usageCount) {
+        return COPY_THRESHOLD > 0 && usageCount >= COPY_THRESHOLD;
+    }
+
+    private int usageCount() {
+        int usageCount = 0;
+        for (JobUsages jobUsages : usages) {
+            for (int r = 0; r < jobUsages.starts.length; r++) {
+                usageCount += jobUsages.ends[r] - jobUsages.starts[r];
+            }
+        }
+        return usageCount;
+    }
+
+    /**
+     * Writes the usage rows of the given fingerprints with {@code COPY FROM STDIN}, streaming them from their ranges.
+     *
+     * @return false if the connection does not support {@code COPY}, in which case nothing has been written.
+     */
+    private static boolean copyUsages(
+            @NonNull Connection connection, @NonNull String instanceId, @NonNull List<FingerprintWritePlan> writePlans)
+            throws SQLException {
+        if (!connection.isWrapperFor(PGConnection.class)) {
+            return false;
+        }
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(
+                        new PGCopyOutputStream(
+                                pgConnection, Queries.getQuery(Queries.COPY_FINGERPRINT_JOB_BUILD_RELATIONS)),
+                        StandardCharsets.UTF_8),
+                COPY_BUFFER_SIZE)) {
+            for (FingerprintWritePlan writePlan : writePlans) {
+                for (JobUsages jobUsages : writePlan.usages) {
+                    String rowPrefix = writePlan.id + '\t' + instanceId + '\t' + escapeCopyText(jobUsages.job) + '\t';
+                    for (int r = 0; r < jobUsages.starts.length; r++) {
+                        for (int buildNumber = jobUsages.starts[r]; buildNumber < jobUsages.ends[r]; buildNumber++) {
+                            writer.write(rowPrefix);
+                            writer.write(Integer.toString(buildNumber));
+                            writer.write('\n');
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Failed in copying fingerprint usages", e);
+        }
+        return true;
+    }
+
+    /**
+     * Escapes the given value for the text format of {@code COPY}.
+     */
+    static @NonNull String escapeCopyText(@NonNull String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * The build numbers of a job which used the fingerprint, as ranges from {@code starts[i]} inclusive to
+     * {@code ends[i]} exclusive.
+     */
+    private static final class JobUsages {
+        final String job;
+        final int[] starts;
+        final int[] ends;
+
+        JobUsages(@NonNull String job, @NonNull int[] starts, @NonNull int[] ends) {
+            this.job = job;
+            this.starts = starts;
+            this.ends = ends;
+        }
+    }
+
+    /**
+     * A serialized facet, with its JSON entry and, if it is stored compressed, its compressed entry and the SHA-256
+     * hash of the compressed entry, which keys its row. Only one of the JSON and compressed entries is sent.
+     */
+    private static final class FacetRow {
+        final String name;
+        final String entry;
+        final byte[] compressedEntry;
+        final byte[] compressedEntryHash;
+        final boolean deletionBlocked;
+
+        FacetRow(
+                @NonNull String name,
+                @NonNull String entry,
+                @CheckForNull byte[] compressedEntry,
+                boolean deletionBlocked) {
+            this.name = name;
+            this.entry = entry;
+            this.compressedEntry = compressedEntry;
+            this.compressedEntryHash = compressedEntry != null ? Util.getSHA256DigestOf(compressedEntry) : null;
+            this.deletionBlocked = deletionBlocked;
+        }
+    }
+}
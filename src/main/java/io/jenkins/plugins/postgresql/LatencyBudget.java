@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Latency budgets of the operations of {@link PostgreSQLFingerprintStorage}.
+ * <p>
+ * The budget of an operation is enforced on every statement with {@link java.sql.Statement#setQueryTimeout(int)}
+ * and, inside transactions, with transaction-local {@code statement_timeout} and {@code lock_timeout} settings, so
+ * that a statement waiting on a lock fails instead of blocking its caller indefinitely. Budgets are configured in
+ * milliseconds with the {@code budget.<operation>Millis} and {@code budget.<operation>LockTimeoutMillis} system
+ * properties, the lock timeout defaulting to half of the budget.
+ */
+@Restricted(NoExternalUse.class)
+public enum LatencyBudget {
+    LOAD(5_000) {
+        @Override
+        public String getDisplayName() {
+            return Messages.LatencyBudget_Load();
+        }
+    },
+    SAVE(10_000) {
+        @Override
+        public String getDisplayName() {
+            return Messages.LatencyBudget_Save();
+        }
+    },
+    DELETE(10_000) {
+        @Override
+        public String getDisplayName() {
+            return Messages.LatencyBudget_Delete();
+        }
+    },
+    CLEANUP(60_000) {
+        @Override
+        public String getDisplayName() {
+            return Messages.LatencyBudget_Cleanup();
+        }
+    };
+
+    private final int budgetMillis;
+    private final int lockTimeoutMillis;
+    private final LongAdder statementTimeouts = new LongAdder();
+    private final LongAdder lockTimeouts = new LongAdder();
+
+    LatencyBudget(int defaultBudgetMillis) {
+        String prefix = PostgreSQLFingerprintStorage.class.getName() + ".budget." + name().toLowerCase(Locale.ROOT);
+        budgetMillis = SystemProperties.getInteger(prefix + "Millis", defaultBudgetMillis);
+        lockTimeoutMillis = SystemProperties.getInteger(prefix + "LockTimeoutMillis", budgetMillis / 2);
+    }
+
+    public abstract String getDisplayName();
+
+    public int getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    public int getLockTimeoutMillis() {
+        return lockTimeoutMillis;
+    }
+
+    /**
+     * Applies the statement and lock timeouts of this budget to the current transaction of the given connection, which
+     * must not be in auto-commit mode. The settings are reset when the transaction commits or rolls back.
+     */
+    void begin(@NonNull Connection connection) throws SQLException {
+        begin(connection, SynchronousCommit.ON);
+    }
+
+    /**
+     * Like {@link #begin(Connection)}, additionally applying the given durability to the commit of the transaction.
+     */
+    void begin(@NonNull Connection connection, @NonNull SynchronousCommit synchronousCommit) throws SQLException {
+        try (PreparedStatement preparedStatement = prepareStatement(connection, Queries.SET_LATENCY_BUDGET)) {
+            preparedStatement.setString(1, Integer.toString(budgetMillis));
+            preparedStatement.setString(2, Integer.toString(lockTimeoutMillis));
+            preparedStatement.setString(3, synchronousCommit.getSetting());
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                resultSet.next();
+            }
+        }
+    }
+
+    /**
+     * Prepares the query with the given name from {@link Queries}, with a query timeout covering this budget.
+     */
+    @NonNull
+    PreparedStatement prepareStatement(@NonNull Connection connection, @NonNull String query) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(Queries.getQuery(query));
+        preparedStatement.setQueryTimeout(Math.max(1, (budgetMillis + 999) / 1000));
+        return preparedStatement;
+    }
+
+    /**
+     * Counts the given failure if it was caused by this budget running out.
+     */
+    void recordFailure(@NonNull SQLException e) {
+        if ("57014".equals(e.getSQLState())) { // query_canceled, raised by statement_timeout and setQueryTimeout
+            statementTimeouts.increment();
+        } else if ("55P03".equals(e.getSQLState())) { // lock_not_available, raised by lock_timeout
+            lockTimeouts.increment();
+        }
+    }
+
+    /**
+     * Returns the number of statements of this operation cancelled for exceeding the budget.
+     */
+    public long getStatementTimeouts() {
+        return statementTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of statements of this operation cancelled for waiting on a lock longer than the lock timeout.
+     */
+    public long getLockTimeouts() {
+        return lockTimeouts.sum();
+    }
+}
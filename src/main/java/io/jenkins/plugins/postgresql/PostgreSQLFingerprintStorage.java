@@ -25,6 +25,7 @@ package io.jenkins.plugins.postgresql;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.Util;
@@ -32,24 +33,48 @@ import hudson.model.Fingerprint;
 import hudson.model.TaskListener;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.sql.Types;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import jenkins.fingerprints.FingerprintStorage;
-import jenkins.model.FingerprintFacet;
+import jenkins.fingerprints.GlobalFingerprintConfiguration;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.main.modules.instance_identity.InstanceIdentity;
 import org.jenkinsci.plugins.database.Database;
 import org.jenkinsci.plugins.database.GlobalDatabaseConfiguration;
 import org.json.JSONArray;
-import org.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * Pluggable external fingerprint storage for fingerprints into PostgreSQL.
@@ -60,164 +85,1487 @@ public class PostgreSQLFingerprintStorage extends FingerprintStorage {
     private final String instanceId;
     private static final Logger LOGGER = Logger.getLogger(PostgreSQLFingerprintStorage.class.getName());
 
+    /**
+     * Maximum number of fingerprint snapshots kept in memory to detect usage-only saves.
+     */
+    private static final int SNAPSHOT_CACHE_SIZE =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".snapshotCacheSize", 1024);
+
+    /**
+     * Maximum number of fingerprint state digests kept in memory to skip saves which change nothing.
+     */
+    private static final int DIGEST_CACHE_SIZE =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".digestCacheSize", 16384);
+
+    /**
+     * Maximum number of spooled writes replayed between two compactions of the {@link FingerprintJournal}.
+     */
+    private static final int REPLAY_BATCH_SIZE =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".journal.replayBatchSize", 100);
+
+    /**
+     * Maximum number of expired fingerprints deleted per transaction by {@link #purgeExpiredFingerprints()}.
+     */
+    private static final int RETENTION_BATCH_SIZE =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".retention.batchSize", 1000);
+
+    /**
+     * Maximum number of fingerprint ids read per query while {@link #rebalanceShards()} scans a database.
+     */
+    private static final int REBALANCE_BATCH_SIZE =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".rebalance.batchSize", 1000);
+
+    /**
+     * Number of fingerprint ids read per query by {@link #streamIdsByFacet(String, String)}.
+     */
+    private static final int FACET_QUERY_PAGE_SIZE =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".facetQuery.pageSize", 1000);
+
+    /**
+     * Size in bytes from which facet entries are stored compressed rather than as {@code JSONB}, or {@code 0} to never
+     * compress them. Compressed entries cannot be queried inside PostgreSQL.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console and tests")
+    static int facetCompressionThreshold = SystemProperties.getInteger(
+            PostgreSQLFingerprintStorage.class.getName() + ".facet.compressionThreshold", 0);
+
+    /**
+     * Number of seconds for which {@link StorageHealth} is cached.
+     */
+    private static final int HEALTH_CACHE_SECONDS =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".health.cacheSeconds", 300);
+
+    /**
+     * Number of hot fingerprints listed by {@link StorageHealth} per relation table.
+     */
+    private static final int HEALTH_HOT_FINGERPRINTS =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".health.hotFingerprints", 10);
+
+    /**
+     * Maximum number of fingerprints written by a single statement of {@link #saveAll(Collection)} and
+     * {@link #deleteAll(Collection)}, at least 1.
+     */
+    private static final int BULK_CHUNK_SIZE = Math.max(
+            1, SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".bulk.chunkSize", 1000));
+
+    /**
+     * Lock stripes serializing the writes of a fingerprint, so that writes of different fingerprints do not wait for
+     * each other.
+     */
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    private ReadReplica readReplica;
+
+    private int retentionDays;
+
+    private SynchronousCommit synchronousCommit;
+
+    private List<Shard> shards;
+
+    private boolean rebalancePending;
+
     private transient ConnectionSupplier connectionSupplier;
 
-    public static PostgreSQLFingerprintStorage get() {
-        return ExtensionList.lookupSingleton(PostgreSQLFingerprintStorage.class);
+    private transient FingerprintSnapshot.Cache snapshots;
+
+    private transient ConcurrentMap<String, CompletableFuture<Fingerprint>> inFlightLoads;
+
+    private transient CircuitBreaker circuitBreaker;
+
+    private transient volatile StorageHealth health;
+
+    private transient volatile ShardRing<ConnectionSupplier> shardRing;
+
+    private transient List<Database> pageCacheDatabases;
+
+    public static PostgreSQLFingerprintStorage get() {
+        return ExtensionList.lookupSingleton(PostgreSQLFingerprintStorage.class);
+    }
+
+    @DataBoundConstructor
+    public PostgreSQLFingerprintStorage() throws IOException {
+        instanceId = Util.getDigestOf(
+                new ByteArrayInputStream(InstanceIdentity.get().getPublic().getEncoded()));
+        initTransientFields();
+    }
+
+    public ConnectionSupplier getConnectionSupplier() {
+        if (connectionSupplier == null) {
+            connectionSupplier = new LocalConnectionSupplier();
+        }
+        return connectionSupplier;
+    }
+
+    public @CheckForNull ReadReplica getReadReplica() {
+        return readReplica;
+    }
+
+    /**
+     * Sets the read replica serving fingerprint reads, or {@code null} to serve them from the global database.
+     */
+    @DataBoundSetter
+    public void setReadReplica(@CheckForNull ReadReplica readReplica) {
+        this.readReplica = readReplica;
+    }
+
+    /**
+     * Returns the number of days after which fingerprints without a facet blocking their deletion are purged, or
+     * {@code 0} if fingerprints are kept forever.
+     */
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    @DataBoundSetter
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = Math.max(0, retentionDays);
+    }
+
+    public @NonNull SynchronousCommit getSynchronousCommit() {
+        return synchronousCommit != null ? synchronousCommit : SynchronousCommit.ON;
+    }
+
+    /**
+     * Sets the durability of the commits of fingerprint writes, trading the latency of saves against the window of
+     * committed writes which may be lost if PostgreSQL crashes.
+     */
+    @DataBoundSetter
+    public void setSynchronousCommit(@CheckForNull SynchronousCommit synchronousCommit) {
+        this.synchronousCommit = synchronousCommit;
+    }
+
+    public @NonNull List<Shard> getShards() {
+        return shards != null ? Collections.unmodifiableList(shards) : Collections.emptyList();
+    }
+
+    /**
+     * Sets the shards storing a share of the fingerprints alongside the global database. Adding a shard moves some
+     * fingerprints to another database, which {@link #rebalanceShards()} does; until then, fingerprints missing from
+     * the database owning them are looked up in the others.
+     */
+    @DataBoundSetter
+    public void setShards(@CheckForNull List<Shard> shards) {
+        List<Shard> newShards = shards != null ? new ArrayList<>(shards) : new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Shard shard : newShards) {
+            if (!names.add(shard.getName())) {
+                throw new IllegalArgumentException("Duplicate shard name: " + shard.getName());
+            }
+        }
+        if (!newShards.isEmpty() || !getShards().isEmpty()) {
+            List<String> oldNames = new ArrayList<>();
+            getShards().forEach(shard -> oldNames.add(shard.getName()));
+            List<String> newNames = new ArrayList<>();
+            newShards.forEach(shard -> newNames.add(shard.getName()));
+            rebalancePending |= !new HashSet<>(oldNames).equals(new HashSet<>(newNames));
+        }
+        this.shards = newShards;
+        shardRing = null;
+    }
+
+    /**
+     * Returns true if the shards changed since fingerprints were last moved to the database owning them.
+     */
+    public boolean isRebalancePending() {
+        return rebalancePending;
+    }
+
+    private @NonNull ShardRing<ConnectionSupplier> shardRing() {
+        ShardRing<ConnectionSupplier> shardRing = this.shardRing;
+        if (shardRing == null) {
+            Map<String, ConnectionSupplier> databases = new LinkedHashMap<>();
+            databases.put(Shard.GLOBAL, getConnectionSupplier());
+            for (Shard shard : getShards()) {
+                databases.put(shard.getName(), shard.getConnectionSupplier());
+            }
+            shardRing = new ShardRing<>(databases);
+            this.shardRing = shardRing;
+        }
+        return shardRing;
+    }
+
+    /**
+     * Returns the database owning the fingerprint with the given id: the global database, or one of the shards.
+     */
+    private @NonNull ConnectionSupplier databaseFor(@NonNull String id) {
+        return shardRing().owner(id);
+    }
+
+    /**
+     * Returns a connection for reading the fingerprint with the given id, or for reads not specific to a fingerprint
+     * if {@code id} is {@code null}.
+     */
+    private Connection readConnection(@CheckForNull String id) throws SQLException {
+        return id != null
+                ? readConnection(databaseFor(id), Collections.singleton(id))
+                : readConnection(getConnectionSupplier(), null);
+    }
+
+    /**
+     * Returns a connection for reading the fingerprints with the given ids from the given database, or for reads not
+     * specific to fingerprints if {@code ids} is {@code null}. Reads from the global database go to the
+     * {@link ReadReplica} when configured and reachable, unless one of the fingerprints, or for reads not specific to
+     * fingerprints any fingerprint, has been written within its read-your-writes window.
+     */
+    private Connection readConnection(@NonNull ConnectionSupplier database, @CheckForNull Collection<String> ids)
+            throws SQLException {
+        ReadReplica readReplica = this.readReplica;
+        if (database == getConnectionSupplier()
+                && readReplica != null
+                && !(ids != null ? readReplica.isAnyRecentlyWritten(ids) : readReplica.isRecentlyWritten(null))) {
+            try {
+                return readReplica.getConnectionSupplier().connection();
+            } catch (SQLException e) {
+                LOGGER.log(Level.FINE, "Read replica unavailable, reading from the global database", e);
+            }
+        }
+        return database.connection();
+    }
+
+    /**
+     * Runs the given call once for each database owning some of the given ids, with the ids it owns, in parallel when
+     * they span several databases: the first call runs on the calling thread and the others are forked. If
+     * {@code everywhere} is set and a rebalance is pending, every database is called with all the ids instead. Once all
+     * the calls completed, the first failure is rethrown.
+     */
+    private void forEachDatabase(@NonNull Collection<String> ids, boolean everywhere, @NonNull DatabaseGroupCall call)
+            throws SQLException {
+        ShardRing<ConnectionSupplier> shardRing = shardRing();
+        Map<ConnectionSupplier, List<String>> groups = new LinkedHashMap<>();
+        if (everywhere && rebalancePending) {
+            for (ConnectionSupplier database : shardRing.members()) {
+                groups.put(database, new ArrayList<>(ids));
+            }
+        } else {
+            for (String id : ids) {
+                groups.computeIfAbsent(shardRing.owner(id), database -> new ArrayList<>()).add(id);
+            }
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+
+        // The first group runs on the calling thread, which may itself be a pool thread of the StorageExecutor.
+        Iterator<Map.Entry<ConnectionSupplier, List<String>>> iterator = groups.entrySet().iterator();
+        Map.Entry<ConnectionSupplier, List<String>> inline = iterator.next();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        while (iterator.hasNext()) {
+            Map.Entry<ConnectionSupplier, List<String>> group = iterator.next();
+            futures.add(StorageExecutor.get().fork(() -> {
+                call.call(group.getKey(), group.getValue());
+                return null;
+            }));
+        }
+        SQLException failure = null;
+        try {
+            call.call(inline.getKey(), inline.getValue());
+        } catch (SQLException e) {
+            failure = e;
+        }
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the shards", "57014", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    if (failure == null) {
+                        failure = (SQLException) e.getCause();
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else {
+                    throw new SQLException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Records that the fingerprint with the given id has just been written, so that later loads neither join a load
+     * started before the write nor read from a lagging {@link ReadReplica}.
+     */
+    private void recordWrite(@NonNull String id) {
+        inFlightLoads.remove(id);
+        FingerprintPageCache pageCache = pageCache();
+        if (pageCache != null) {
+            pageCache.invalidate(id);
+        }
+        ReadReplica readReplica = this.readReplica;
+        if (readReplica != null) {
+            readReplica.recordWrite(id);
+        }
+    }
+
+    /**
+     * Returns the {@link FingerprintPageCache}, or {@code null} if it is disabled. The page cache is keyed by this
+     * instance and the configuration of its databases, so that it is cleared rather than trusted when they change,
+     * including while Jenkins was stopped.
+     */
+    private @CheckForNull FingerprintPageCache pageCache() {
+        FingerprintPageCache pageCache = FingerprintPageCache.get();
+        if (pageCache == null) {
+            return null;
+        }
+        List<Database> databases = new ArrayList<>();
+        databases.add(getConnectionSupplier().database());
+        for (Shard shard : getShards()) {
+            databases.add(shard.getDatabase());
+        }
+        synchronized (pageCache) {
+            if (!databasesEqual(databases, pageCacheDatabases)) {
+                StringBuilder key = new StringBuilder(instanceId);
+                for (Shard shard : getShards()) {
+                    key.append('\n').append(shard.getName());
+                }
+                for (Database database : databases) {
+                    key.append('\n').append(database != null ? Jenkins.XSTREAM2.toXML(database) : "");
+                }
+                pageCache.claim(Util.getDigestOf(key.toString()));
+                pageCacheDatabases = databases;
+            }
+        }
+        return pageCache;
+    }
+
+    /**
+     * Returns true if both lists hold the same database instances, which are replaced whenever they are reconfigured.
+     */
+    private static boolean databasesEqual(@NonNull List<Database> databases, @CheckForNull List<Database> others) {
+        if (others == null || databases.size() != others.size()) {
+            return false;
+        }
+        for (int i = 0; i < databases.size(); i++) {
+            if (databases.get(i) != others.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the cached state of the fingerprint with the given id, which is about to be written, returning its
+     * snapshot if any.
+     */
+    private @CheckForNull FingerprintSnapshot invalidate(@NonNull String id) {
+        FingerprintPageCache pageCache = pageCache();
+        if (pageCache != null) {
+            pageCache.invalidate(id);
+        }
+        return snapshots.take(id);
+    }
+
+    private Object readResolve() {
+        initTransientFields();
+        return this;
+    }
+
+    private void initTransientFields() {
+        snapshots = new FingerprintSnapshot.Cache(SNAPSHOT_CACHE_SIZE, DIGEST_CACHE_SIZE);
+        inFlightLoads = new ConcurrentHashMap<>();
+        circuitBreaker = new CircuitBreaker();
+    }
+
+    /**
+     * Saves the given fingerprint inside the PostgreSQL instance.
+     * <p>
+     * If the digest of the fingerprint matches that of its last known stored state, nothing is written and PostgreSQL
+     * is not even queried. If the only difference to the last known stored state is new usages, only those usages
+     * are written. Otherwise the fingerprint is rewritten completely, from a {@link FingerprintWritePlan} serialized
+     * before the transaction is opened, unless the digest stored along with it shows it is unchanged. Unless
+     * {@link #getSynchronousCommit()} is {@link SynchronousCommit#ON}, the last known stored states are forgotten as
+     * soon as PostgreSQL becomes unreachable, since the commits they were recorded on may have been lost.
+     * <p>
+     * While PostgreSQL is unavailable, the fingerprint is spooled to the local {@link FingerprintJournal} instead, and
+     * written once PostgreSQL is back.
+     */
+    public void save(@NonNull Fingerprint fingerprint) throws IOException {
+        String id = fingerprint.getHashString();
+        synchronized (lockFor(id)) {
+            FingerprintSnapshot snapshot = FingerprintSnapshot.of(fingerprint);
+            if (snapshots.isStored(id, snapshot)) {
+                return;
+            }
+            if (circuitBreaker.allowRequest()) {
+                try {
+                    guarded(LatencyBudget.SAVE, () -> {
+                        saveToDatabase(fingerprint, snapshot);
+                        return null;
+                    });
+                    FingerprintJournal.get().discard(id);
+                    return;
+                } catch (SQLException e) {
+                    if (!CircuitBreaker.isTransientFailure(e)) {
+                        LOGGER.log(Level.WARNING, "PostgreSQL failed in saving fingerprint: " + fingerprint, e);
+                        throw new IOException(e);
+                    }
+                    LOGGER.log(Level.WARNING, "PostgreSQL failed in saving fingerprint, spooling it: " + id, e);
+                }
+            }
+            invalidate(id);
+            inFlightLoads.remove(id);
+            FingerprintJournal.get().appendSave(fingerprint);
+        }
+    }
+
+    private void saveToDatabase(@NonNull Fingerprint fingerprint) throws SQLException {
+        saveToDatabase(fingerprint, FingerprintSnapshot.of(fingerprint));
+    }
+
+    private void saveToDatabase(@NonNull Fingerprint fingerprint, @NonNull FingerprintSnapshot snapshot)
+            throws SQLException {
+        String id = fingerprint.getHashString();
+        FingerprintSnapshot previousSnapshot = invalidate(id);
+        List<FingerprintSnapshot.Usage> newUsages =
+                previousSnapshot != null ? previousSnapshot.newUsagesIn(snapshot) : null;
+        FingerprintWritePlan writePlan =
+                newUsages == null ? FingerprintWritePlan.of(fingerprint, facetCompressionThreshold, snapshot) : null;
+
+        try (Connection connection = databaseFor(id).connection()) {
+            connection.setAutoCommit(false);
+
+            if (newUsages != null) {
+                try {
+                    LatencyBudget.SAVE.begin(connection, getSynchronousCommit());
+                    addUsages(id, newUsages, snapshot.getDigest(), connection);
+                    connection.commit();
+                    recordWrite(id);
+                    snapshots.put(id, snapshot);
+                    return;
+                } catch (SQLException e) {
+                    LOGGER.log(Level.FINE, "Incremental save failed, rewriting fingerprint: " + id, e);
+                    connection.rollback();
+                }
+            }
+
+            if (writePlan == null) {
+                writePlan = FingerprintWritePlan.of(fingerprint, facetCompressionThreshold, snapshot);
+            }
+            LatencyBudget.SAVE.begin(connection, getSynchronousCommit());
+            if (previousSnapshot != null || !Arrays.equals(selectStateDigest(id, connection), snapshot.getDigest())) {
+                writePlan.write(connection, instanceId);
+            }
+
+            connection.commit();
+            recordWrite(id);
+            snapshots.put(id, snapshot);
+        }
+    }
+
+    /**
+     * Saves all the given fingerprints inside the PostgreSQL instance, in a single transaction whose rows are written
+     * with array-bound statements of up to {@link #BULK_CHUNK_SIZE} fingerprints each. This is much faster than
+     * calling {@link #save(Fingerprint)} for each of many fingerprints, e.g. those archived by a single build.
+     * Fingerprints whose digest matches that of their last known stored state are skipped.
+     * <p>
+     * While PostgreSQL is unavailable, the fingerprints are spooled to the local {@link FingerprintJournal} instead.
+     */
+    public void saveAll(@NonNull Collection<Fingerprint> fingerprints) throws IOException {
+        Map<String, Fingerprint> fingerprintsById = new LinkedHashMap<>();
+        for (Fingerprint fingerprint : fingerprints) {
+            fingerprintsById.put(fingerprint.getHashString(), fingerprint);
+        }
+        if (fingerprintsById.isEmpty()) {
+            return;
+        }
+        withLocks(fingerprintsById.keySet(), () -> {
+            Map<String, FingerprintSnapshot> savedSnapshots = new HashMap<>();
+            for (Map.Entry<String, Fingerprint> fingerprint : fingerprintsById.entrySet()) {
+                savedSnapshots.put(fingerprint.getKey(), FingerprintSnapshot.of(fingerprint.getValue()));
+            }
+            fingerprintsById.keySet().removeIf(id -> snapshots.isStored(id, savedSnapshots.get(id)));
+            if (fingerprintsById.isEmpty()) {
+                return;
+            }
+            if (circuitBreaker.allowRequest()) {
+                try {
+                    guarded(LatencyBudget.SAVE, () -> {
+                        saveAllToDatabase(fingerprintsById.values(), savedSnapshots);
+                        return null;
+                    });
+                    for (String id : fingerprintsById.keySet()) {
+                        FingerprintJournal.get().discard(id);
+                    }
+                    return;
+                } catch (SQLException e) {
+                    if (!CircuitBreaker.isTransientFailure(e)) {
+                        LOGGER.log(Level.WARNING, "PostgreSQL failed in saving fingerprints", e);
+                        throw new IOException(e);
+                    }
+                    LOGGER.log(Level.WARNING, "PostgreSQL failed in saving fingerprints, spooling them", e);
+                }
+            }
+            for (Fingerprint fingerprint : fingerprintsById.values()) {
+                invalidate(fingerprint.getHashString());
+                inFlightLoads.remove(fingerprint.getHashString());
+                FingerprintJournal.get().appendSave(fingerprint);
+            }
+        });
+    }
+
+    private void saveAllToDatabase(
+            @NonNull Collection<Fingerprint> fingerprints, @NonNull Map<String, FingerprintSnapshot> savedSnapshots)
+            throws SQLException {
+        Map<String, FingerprintWritePlan> writePlans = new LinkedHashMap<>();
+        for (Fingerprint fingerprint : fingerprints) {
+            String id = fingerprint.getHashString();
+            writePlans.put(id, FingerprintWritePlan.of(fingerprint, facetCompressionThreshold, savedSnapshots.get(id)));
+            invalidate(id);
+        }
+
+        forEachDatabase(writePlans.keySet(), false, (database, ids) -> {
+            List<FingerprintWritePlan> databaseWritePlans = new ArrayList<>();
+            for (String id : ids) {
+                databaseWritePlans.add(writePlans.get(id));
+            }
+            try (Connection connection = database.connection()) {
+                connection.setAutoCommit(false);
+                LatencyBudget.SAVE.begin(connection, getSynchronousCommit());
+                FingerprintWritePlan.writeAll(connection, instanceId, databaseWritePlans, BULK_CHUNK_SIZE);
+                connection.commit();
+            }
+            for (String id : ids) {
+                recordWrite(id);
+                snapshots.put(id, savedSnapshots.get(id));
+            }
+        });
+    }
+
+    /**
+     * Records a single usage of the fingerprint with the given id, without rewriting the rest of the fingerprint.
+     * Recording a usage which is already stored is a no-op.
+     *
+     * @throws IOException if the fingerprint is not stored inside the PostgreSQL instance, or if PostgreSQL is
+     * unavailable.
+     */
+    public void addUsage(@NonNull String id, @NonNull String job, int buildNumber) throws IOException {
+        synchronized (lockFor(id)) {
+            FingerprintJournal.Record record = FingerprintJournal.get().get(id);
+            if (record != null) {
+                Fingerprint fingerprint = record.toFingerprint();
+                if (fingerprint == null) {
+                    throw new IOException("Fingerprint has been deleted: " + id);
+                }
+                fingerprint.addWithoutSaving(job, buildNumber);
+                FingerprintJournal.get().appendSave(fingerprint);
+                return;
+            }
+            if (!circuitBreaker.allowRequest()) {
+                throw new IOException("PostgreSQL is unavailable, failed in adding usage to fingerprint: " + id);
+            }
+
+            invalidate(id);
+            try {
+                guarded(LatencyBudget.SAVE, () -> {
+                    try (Connection connection = databaseFor(id).connection()) {
+                        connection.setAutoCommit(false);
+                        LatencyBudget.SAVE.begin(connection, getSynchronousCommit());
+                        addUsages(
+                                id,
+                                Collections.singletonList(new FingerprintSnapshot.Usage(job, buildNumber)),
+                                null,
+                                connection);
+                        connection.commit();
+                        recordWrite(id);
+                    }
+                    return null;
+                });
+            } catch (SQLException e) {
+                LOGGER.log(Level.WARNING, "PostgreSQL failed in adding usage to fingerprint: " + id, e);
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Adds the given usages to the stored fingerprint, recording the digest of its new state, or {@code null} if
+     * unknown.
+     */
+    private void addUsages(
+            @NonNull String id,
+            @NonNull List<FingerprintSnapshot.Usage> usages,
+            @CheckForNull byte[] stateDigest,
+            @NonNull Connection connection)
+            throws SQLException {
+        if (usages.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement preparedStatement = LatencyBudget.SAVE.prepareStatement(
+                connection, Queries.INSERT_FINGERPRINT_JOB_BUILD_RELATION_IF_ABSENT)) {
+            for (FingerprintSnapshot.Usage usage : usages) {
+                preparedStatement.setString(1, id);
+                preparedStatement.setString(2, instanceId);
+                preparedStatement.setString(3, usage.job);
+                preparedStatement.setInt(4, usage.buildNumber);
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+        }
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.SAVE.prepareStatement(connection, Queries.UPDATE_FINGERPRINT_STATE_DIGEST)) {
+            preparedStatement.setBytes(1, stateDigest);
+            preparedStatement.setString(2, id);
+            preparedStatement.setString(3, instanceId);
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    private @CheckForNull byte[] selectStateDigest(@NonNull String id, @NonNull Connection connection)
+            throws SQLException {
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.SAVE.prepareStatement(connection, Queries.SELECT_FINGERPRINT_STATE_DIGEST)) {
+            preparedStatement.setString(1, id);
+            preparedStatement.setString(2, instanceId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getBytes(ColumnName.STATE_DIGEST) : null;
+            }
+        }
+    }
+
+    /**
+     * Returns the fingerprint associated with the given unique id and the Jenkins instance ID, from the PostgreSQL
+     * instance.
+     * <p>
+     * Concurrent loads of the same fingerprint are coalesced: only the first one queries PostgreSQL, and all of them
+     * return the same {@link Fingerprint} instance, as {@link jenkins.model.Jenkins#getFingerprintMap()} would.
+     * <p>
+     * Fingerprints spooled to the {@link FingerprintJournal} are returned from there, then fingerprints cached in the
+     * {@link FingerprintPageCache}. Other loads fail fast while PostgreSQL is unavailable.
+     */
+    public @CheckForNull Fingerprint load(@NonNull String id) throws IOException {
+        FingerprintJournal.Record record = FingerprintJournal.get().get(id);
+        if (record != null) {
+            return record.toFingerprint();
+        }
+
+        FingerprintPageCache pageCache = pageCache();
+        if (pageCache != null) {
+            String fingerprintJSON = pageCache.get(id);
+            if (fingerprintJSON != null) {
+                // Not a snapshot of the stored state: the next save of this fingerprint rewrites it completely.
+                return (Fingerprint) XStreamHandler.getXStream().fromXML(fingerprintJSON);
+            }
+        }
+
+        CompletableFuture<Fingerprint> loading = new CompletableFuture<>();
+        CompletableFuture<Fingerprint> inFlightLoad = inFlightLoads.putIfAbsent(id, loading);
+        if (inFlightLoad != null) {
+            return awaitLoad(id, inFlightLoad);
+        }
+
+        try {
+            if (!circuitBreaker.allowRequest()) {
+                throw new IOException("PostgreSQL is unavailable, failed in loading fingerprint: " + id);
+            }
+            Fingerprint fingerprint = loadFromDatabase(id);
+            loading.complete(fingerprint);
+            return fingerprint;
+        } catch (IOException | RuntimeException e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(id, loading);
+        }
+    }
+
+    private @CheckForNull Fingerprint awaitLoad(
+            @NonNull String id, @NonNull CompletableFuture<Fingerprint> inFlightLoad) throws IOException {
+        try {
+            return inFlightLoad.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading fingerprint: " + id);
+        } catch (ExecutionException e) {
+            throw new IOException("PostgreSQL failed in loading fingerprint: " + id, e.getCause());
+        }
+    }
+
+    private @CheckForNull Fingerprint loadFromDatabase(@NonNull String id) throws IOException {
+        try {
+            FingerprintPageCache pageCache = pageCache();
+            long pageGeneration = pageCache != null ? pageCache.generation() : 0;
+            Fingerprint fingerprint = guarded(LatencyBudget.LOAD, () -> loadFromDatabase(id, snapshots.generation()));
+            if (pageCache != null && fingerprint != null) {
+                pageCache.putIfUnchanged(id, XStreamHandler.getXStream().toXML(fingerprint), pageGeneration);
+            }
+            return fingerprint;
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "PostgreSQL failed in loading fingerprint: " + id, e);
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Loads the fingerprint with the given id from the database owning it or, while a rebalance is pending, from
+     * whichever database still has it.
+     */
+    private @CheckForNull Fingerprint loadFromDatabase(@NonNull String id, long generation) throws SQLException {
+        ConnectionSupplier owner = databaseFor(id);
+        Fingerprint fingerprint;
+        try (Connection connection = readConnection(owner, Collections.singleton(id))) {
+            fingerprint = selectFingerprint(id, connection);
+        }
+        if (fingerprint == null && rebalancePending) {
+            for (ConnectionSupplier database : shardRing().members()) {
+                if (database != owner) {
+                    try (Connection connection = database.connection()) {
+                        fingerprint = selectFingerprint(id, connection);
+                    }
+                    if (fingerprint != null) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (fingerprint != null) {
+            snapshots.putIfUnchanged(id, FingerprintSnapshot.of(fingerprint), generation);
+        }
+        return fingerprint;
+    }
+
+    private @CheckForNull Fingerprint selectFingerprint(@NonNull String id, @NonNull Connection connection)
+            throws SQLException {
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.LOAD.prepareStatement(connection, Queries.SELECT_FINGERPRINT)) {
+
+            preparedStatement.setString(1, id);
+            preparedStatement.setString(2, instanceId);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+
+                Map<String, String> fingerprintMetadata = DataConversion.extractFingerprintMetadata(
+                        id,
+                        resultSet.getTimestamp(ColumnName.TIMESTAMP),
+                        resultSet.getString(ColumnName.FILENAME),
+                        resultSet.getString(ColumnName.ORIGINAL_JOB_NAME),
+                        resultSet.getString(ColumnName.ORIGINAL_JOB_BUILD_NUMBER));
+                Map<String, Fingerprint.RangeSet> usageMetadata =
+                        DataConversion.extractUsageMetadata(resultSet.getString(ColumnName.USAGES));
+                JSONArray facets = DataConversion.extractFacets(resultSet.getString(ColumnName.FACETS));
+                String json = DataConversion.constructFingerprintJSON(fingerprintMetadata, usageMetadata, facets);
+                return (Fingerprint) XStreamHandler.getXStream().fromXML(json);
+            }
+        }
+    }
+
+    /**
+     * Returns the metadata of the fingerprint with the given id, without loading its usages nor facets.
+     *
+     * @see #loadMetadata(Collection)
+     */
+    public @CheckForNull FingerprintMetadata loadMetadata(@NonNull String id) throws IOException {
+        return loadMetadata(Collections.singleton(id)).get(id);
+    }
+
+    /**
+     * Returns the metadata of the stored fingerprints among the given ids, by id, reading only the
+     * {@code FINGERPRINT} table. Their usages are loaded together on first access to any of them.
+     * <p>
+     * Fingerprints spooled to the {@link FingerprintJournal} are returned from there.
+     */
+    public @NonNull Map<String, FingerprintMetadata> loadMetadata(@NonNull Collection<String> ids) throws IOException {
+        Map<String, FingerprintMetadata> metadata = new LinkedHashMap<>();
+        List<String> storedIds = new ArrayList<>();
+        for (String id : new LinkedHashSet<>(ids)) {
+            FingerprintJournal.Record record = FingerprintJournal.get().get(id);
+            if (record == null) {
+                storedIds.add(id);
+            } else {
+                Fingerprint fingerprint = record.toFingerprint();
+                if (fingerprint != null) {
+                    metadata.put(id, FingerprintMetadata.of(this, fingerprint));
+                }
+            }
+        }
+        if (storedIds.isEmpty()) {
+            return metadata;
+        }
+        if (!circuitBreaker.allowRequest()) {
+            throw new IOException("PostgreSQL is unavailable, failed in loading fingerprint metadata");
+        }
+
+        FingerprintMetadata.Batch batch = new FingerprintMetadata.Batch();
+        Map<String, FingerprintMetadata> storedMetadata = new ConcurrentHashMap<>();
+        try {
+            guarded(LatencyBudget.LOAD, () -> {
+                forEachDatabase(storedIds, true, (database, databaseIds) -> {
+                    try (Connection connection = readConnection(database, databaseIds)) {
+                        for (int from = 0; from < databaseIds.size(); from += BULK_CHUNK_SIZE) {
+                            List<String> chunk =
+                                    databaseIds.subList(from, Math.min(from + BULK_CHUNK_SIZE, databaseIds.size()));
+                            selectMetadata(connection, database, chunk, batch, storedMetadata);
+                        }
+                    }
+                });
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "PostgreSQL failed in loading fingerprint metadata", e);
+            throw new IOException(e);
+        }
+        for (String id : storedIds) {
+            FingerprintMetadata fingerprintMetadata = storedMetadata.get(id);
+            if (fingerprintMetadata != null) {
+                metadata.put(id, fingerprintMetadata);
+            }
+        }
+        return metadata;
+    }
+
+    private void selectMetadata(
+            @NonNull Connection connection,
+            @NonNull ConnectionSupplier database,
+            @NonNull List<String> ids,
+            @NonNull FingerprintMetadata.Batch batch,
+            @NonNull Map<String, FingerprintMetadata> metadata)
+            throws SQLException {
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.LOAD.prepareStatement(connection, Queries.SELECT_FINGERPRINTS_METADATA)) {
+            preparedStatement.setString(1, instanceId);
+            preparedStatement.setArray(2, connection.createArrayOf("varchar", ids.toArray(new String[0])));
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    String id = resultSet.getString(ColumnName.FINGERPRINT_ID);
+                    String originalJobName = resultSet.getString(ColumnName.ORIGINAL_JOB_NAME);
+                    int originalJobBuildNumber = resultSet.getInt(ColumnName.ORIGINAL_JOB_BUILD_NUMBER);
+                    Fingerprint.BuildPtr original = resultSet.wasNull()
+                            ? null
+                            : new Fingerprint.BuildPtr(originalJobName, originalJobBuildNumber);
+                    putFromDatabase(
+                            metadata,
+                            database,
+                            id,
+                            new FingerprintMetadata(
+                                    this,
+                                    id,
+                                    resultSet.getString(ColumnName.FILENAME),
+                                    resultSet.getTimestamp(ColumnName.TIMESTAMP),
+                                    original,
+                                    batch));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the usages of the stored fingerprints among the given ids, by id, collapsed into ranges in SQL.
+     */
+    @NonNull
+    Map<String, Map<String, Fingerprint.RangeSet>> loadUsages(@NonNull List<String> ids) throws IOException {
+        if (!circuitBreaker.allowRequest()) {
+            throw new IOException("PostgreSQL is unavailable, failed in loading fingerprint usages");
+        }
+        Map<String, Map<String, Fingerprint.RangeSet>> usages = new ConcurrentHashMap<>();
+        try {
+            guarded(LatencyBudget.LOAD, () -> {
+                forEachDatabase(ids, true, (database, databaseIds) -> {
+                    try (Connection connection = readConnection(database, databaseIds)) {
+                        for (int from = 0; from < databaseIds.size(); from += BULK_CHUNK_SIZE) {
+                            List<String> chunk =
+                                    databaseIds.subList(from, Math.min(from + BULK_CHUNK_SIZE, databaseIds.size()));
+                            selectUsages(connection, database, chunk, usages);
+                        }
+                    }
+                });
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "PostgreSQL failed in loading fingerprint usages", e);
+            throw new IOException(e);
+        }
+        return usages;
     }
 
-    @DataBoundConstructor
-    public PostgreSQLFingerprintStorage() throws IOException {
-        instanceId = Util.getDigestOf(
-                new ByteArrayInputStream(InstanceIdentity.get().getPublic().getEncoded()));
+    private void selectUsages(
+            @NonNull Connection connection,
+            @NonNull ConnectionSupplier database,
+            @NonNull List<String> ids,
+            @NonNull Map<String, Map<String, Fingerprint.RangeSet>> usages)
+            throws SQLException {
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.LOAD.prepareStatement(connection, Queries.SELECT_FINGERPRINTS_USAGES)) {
+            preparedStatement.setString(1, instanceId);
+            preparedStatement.setArray(2, connection.createArrayOf("varchar", ids.toArray(new String[0])));
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    putFromDatabase(
+                            usages,
+                            database,
+                            resultSet.getString(ColumnName.FINGERPRINT_ID),
+                            DataConversion.extractUsageMetadata(resultSet.getString(ColumnName.USAGES)));
+                }
+            }
+        }
     }
 
-    public ConnectionSupplier getConnectionSupplier() {
-        if (connectionSupplier == null) {
-            connectionSupplier = new LocalConnectionSupplier();
+    /**
+     * Records the given value read for the fingerprint with the given id from the given database, where the value
+     * read from the database owning the fingerprint wins over a copy left behind elsewhere by a pending rebalance.
+     */
+    private <T> void putFromDatabase(
+            @NonNull Map<String, T> values,
+            @NonNull ConnectionSupplier database,
+            @NonNull String id,
+            @NonNull T value) {
+        if (database == databaseFor(id)) {
+            values.put(id, value);
+        } else {
+            values.putIfAbsent(id, value);
         }
-        return connectionSupplier;
     }
 
     /**
-     * Saves the given fingerprint inside the PostgreSQL instance.
+     * Returns, in ascending order, up to {@code limit} ids following {@code after} of the fingerprints having a facet
+     * of the given class whose entry contains the given JSON, e.g. {@code {"imageId": "sha256:..."}}, or having any
+     * facet of that class if {@code filter} is {@code null}. Passing the last id returned as {@code after} reads the
+     * next page, using the {@code FACET_ENTRY} and {@code FACET_NAME} indexes whatever the page.
+     * <p>
+     * Compressed facets are never matched, and neither are fingerprints spooled to the {@link FingerprintJournal}.
+     *
+     * @param facetName the class name of the facets.
+     * @param filter a JSON object or array contained in the facet entries, or {@code null}.
+     * @param after the id the page starts after, or {@code null} for the first page.
      */
-    public synchronized void save(@NonNull Fingerprint fingerprint) throws IOException {
-        try (Connection connection = getConnectionSupplier().connection()) {
-            connection.setAutoCommit(false);
+    public @NonNull List<String> findIdsByFacet(
+            @NonNull String facetName, @CheckForNull String filter, @CheckForNull String after, int limit)
+            throws IOException {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        if (!circuitBreaker.allowRequest()) {
+            throw new IOException("PostgreSQL is unavailable, failed in finding fingerprints by facet");
+        }
+        // Fingerprint ids are hexadecimal digests, which PostgreSQL and Java order alike.
+        Set<String> ids = new TreeSet<>();
+        try {
+            guarded(LatencyBudget.LOAD, () -> {
+                for (ConnectionSupplier database : shardRing().members()) {
+                    try (Connection connection = readConnection(database, null)) {
+                        selectIdsByFacet(connection, facetName, filter, after != null ? after : "", limit, ids);
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "PostgreSQL failed in finding fingerprints by facet", e);
+            throw new IOException(e);
+        }
+        List<String> page = new ArrayList<>(ids);
+        return page.size() > limit ? new ArrayList<>(page.subList(0, limit)) : page;
+    }
 
-            delete(fingerprint.getHashString(), connection);
+    /**
+     * Streams the ids of all the fingerprints found by {@link #findIdsByFacet(String, String, String, int)}, reading
+     * them lazily in pages of {@link #FACET_QUERY_PAGE_SIZE}. Failures are rethrown as {@link UncheckedIOException}.
+     */
+    public @NonNull Stream<String> streamIdsByFacet(@NonNull String facetName, @CheckForNull String filter) {
+        Iterator<String> iterator = new Iterator<>() {
+            private List<String> page = Collections.emptyList();
+            private int index;
+            private boolean lastPage;
 
-            try (PreparedStatement preparedStatement =
-                    connection.prepareStatement(Queries.getQuery(Queries.INSERT_FINGERPRINT))) {
-                preparedStatement.setString(1, fingerprint.getHashString());
-                preparedStatement.setString(2, instanceId);
-                preparedStatement.setTimestamp(
-                        3, new Timestamp(fingerprint.getTimestamp().getTime()));
-                preparedStatement.setString(4, fingerprint.getFileName());
-
-                Fingerprint.BuildPtr original = fingerprint.getOriginal();
-                if (original != null) {
-                    preparedStatement.setString(5, original.getName());
-                    preparedStatement.setInt(6, original.getNumber());
-                } else {
-                    preparedStatement.setNull(5, Types.NULL);
-                    preparedStatement.setNull(6, Types.NULL);
+            @Override
+            public boolean hasNext() {
+                if (index == page.size() && !lastPage) {
+                    String after = page.isEmpty() ? null : page.get(page.size() - 1);
+                    try {
+                        page = findIdsByFacet(facetName, filter, after, FACET_QUERY_PAGE_SIZE);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    index = 0;
+                    lastPage = page.size() < FACET_QUERY_PAGE_SIZE;
                 }
-
-                preparedStatement.executeUpdate();
+                return index < page.size();
             }
 
-            Hashtable<String, Fingerprint.RangeSet> usages = fingerprint.getUsages();
-            if (usages != null) {
-                for (Map.Entry<String, Fingerprint.RangeSet> usage : usages.entrySet()) {
-                    String jobName = usage.getKey();
-                    Fingerprint.RangeSet rangeSet = usage.getValue();
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.get(index++);
+            }
+        };
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(
+                        iterator, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL),
+                false);
+    }
 
-                    for (int buildNumber : rangeSet.listNumbers()) {
-                        try (PreparedStatement preparedStatement = connection.prepareStatement(
-                                Queries.getQuery(Queries.INSERT_FINGERPRINT_JOB_BUILD_RELATION))) {
-                            preparedStatement.setString(1, fingerprint.getHashString());
-                            preparedStatement.setString(2, instanceId);
-                            preparedStatement.setString(3, jobName);
-                            preparedStatement.setInt(4, buildNumber);
-                            preparedStatement.executeUpdate();
-                        }
-                    }
+    private void selectIdsByFacet(
+            @NonNull Connection connection,
+            @NonNull String facetName,
+            @CheckForNull String filter,
+            @NonNull String after,
+            int limit,
+            @NonNull Set<String> ids)
+            throws SQLException {
+        String query = filter != null
+                ? Queries.SELECT_FINGERPRINT_IDS_BY_FACET_ENTRY
+                : Queries.SELECT_FINGERPRINT_IDS_BY_FACET;
+        try (PreparedStatement preparedStatement = LatencyBudget.LOAD.prepareStatement(connection, query)) {
+            int parameterIndex = 1;
+            preparedStatement.setString(parameterIndex++, instanceId);
+            preparedStatement.setString(parameterIndex++, facetName);
+            if (filter != null) {
+                preparedStatement.setString(parameterIndex++, filter);
+            }
+            preparedStatement.setString(parameterIndex++, after);
+            preparedStatement.setInt(parameterIndex, limit);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getString(ColumnName.FINGERPRINT_ID));
                 }
             }
+        }
+    }
 
-            for (FingerprintFacet fingerprintFacet : fingerprint.getPersistedFacets()) {
-                JSONObject fingerprintFacetJSON =
-                        new JSONObject(XStreamHandler.getXStream().toXML(fingerprintFacet));
-                String fingerprintFacetName = fingerprintFacetJSON.keys().next();
-                String fingerprintFacetEntry =
-                        fingerprintFacetJSON.getJSONObject(fingerprintFacetName).toString();
+    /**
+     * Returns the numbers of fingerprints, usages and facets this Jenkins instance stores, summed over the
+     * {@link Shard}s. They are read from counters kept up to date by triggers rather than counted, so that dashboards
+     * and health checks can poll them whatever the size of the tables. Fingerprints spooled to the
+     * {@link FingerprintJournal} are not counted.
+     */
+    public @NonNull FingerprintCounters getCounters() throws IOException {
+        if (!circuitBreaker.allowRequest()) {
+            throw new IOException("PostgreSQL is unavailable, failed in reading the fingerprint counters");
+        }
+        try {
+            return guarded(LatencyBudget.LOAD, () -> {
+                FingerprintCounters counters = FingerprintCounters.NONE;
+                for (ConnectionSupplier database : shardRing().members()) {
+                    try (Connection connection = readConnection(database, null)) {
+                        counters = counters.plus(FingerprintCounters.select(connection, instanceId));
+                    }
+                }
+                return counters;
+            });
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "PostgreSQL failed in reading the fingerprint counters", e);
+            throw new IOException(e);
+        }
+    }
 
-                try (PreparedStatement preparedStatement =
-                        connection.prepareStatement(Queries.getQuery(Queries.INSERT_FINGERPRINT_FACET_RELATION))) {
-                    preparedStatement.setString(1, fingerprint.getHashString());
-                    preparedStatement.setString(2, instanceId);
-                    preparedStatement.setString(3, fingerprintFacetName);
-                    preparedStatement.setString(4, fingerprintFacetEntry);
-                    preparedStatement.setBoolean(5, fingerprintFacet.isFingerprintDeletionBlocked());
+    /**
+     * Deletes the fingerprint with the given id from the PostgreSQL instance.
+     * <p>
+     * While PostgreSQL is unavailable, the deletion is spooled to the local {@link FingerprintJournal} instead.
+     */
+    public void delete(@NonNull String id) throws IOException {
+        synchronized (lockFor(id)) {
+            if (circuitBreaker.allowRequest()) {
+                try {
+                    guarded(LatencyBudget.DELETE, () -> {
+                        deleteFromDatabase(id);
+                        return null;
+                    });
+                    FingerprintJournal.get().discard(id);
+                    return;
+                } catch (SQLException e) {
+                    if (!CircuitBreaker.isTransientFailure(e)) {
+                        LOGGER.log(Level.WARNING, "PostgreSQL failed in deleting fingerprint: " + id, e);
+                        throw new IOException(e);
+                    }
+                    LOGGER.log(Level.WARNING, "PostgreSQL failed in deleting fingerprint, spooling it: " + id, e);
+                }
+            }
+            invalidate(id);
+            inFlightLoads.remove(id);
+            FingerprintJournal.get().appendDelete(id);
+        }
+    }
 
-                    preparedStatement.executeUpdate();
+    /**
+     * Deletes all the fingerprints with the given ids from the PostgreSQL instance, in a single transaction whose
+     * statements delete up to {@link #BULK_CHUNK_SIZE} fingerprints each.
+     * <p>
+     * While PostgreSQL is unavailable, the deletions are spooled to the local {@link FingerprintJournal} instead.
+     */
+    public void deleteAll(@NonNull Collection<String> ids) throws IOException {
+        Set<String> uniqueIds = new LinkedHashSet<>(ids);
+        if (uniqueIds.isEmpty()) {
+            return;
+        }
+        withLocks(uniqueIds, () -> {
+            if (circuitBreaker.allowRequest()) {
+                try {
+                    guarded(LatencyBudget.DELETE, () -> {
+                        deleteAllFromDatabase(uniqueIds);
+                        return null;
+                    });
+                    for (String id : uniqueIds) {
+                        FingerprintJournal.get().discard(id);
+                    }
+                    return;
+                } catch (SQLException e) {
+                    if (!CircuitBreaker.isTransientFailure(e)) {
+                        LOGGER.log(Level.WARNING, "PostgreSQL failed in deleting fingerprints", e);
+                        throw new IOException(e);
+                    }
+                    LOGGER.log(Level.WARNING, "PostgreSQL failed in deleting fingerprints, spooling them", e);
                 }
             }
+            for (String id : uniqueIds) {
+                invalidate(id);
+                inFlightLoads.remove(id);
+                FingerprintJournal.get().appendDelete(id);
+            }
+        });
+    }
 
-            connection.commit();
-        } catch (SQLException e) {
-            LOGGER.log(Level.WARNING, "PostgreSQL failed in saving fingerprint: " + fingerprint.toString(), e);
-            throw new IOException(e);
+    private void deleteAllFromDatabase(@NonNull Set<String> ids) throws SQLException {
+        for (String id : ids) {
+            invalidate(id);
+        }
+        forEachDatabase(ids, true, (database, databaseIds) -> {
+            try (Connection connection = database.connection()) {
+                connection.setAutoCommit(false);
+                LatencyBudget.DELETE.begin(connection, getSynchronousCommit());
+                for (int from = 0; from < databaseIds.size(); from += BULK_CHUNK_SIZE) {
+                    List<String> chunk =
+                            databaseIds.subList(from, Math.min(from + BULK_CHUNK_SIZE, databaseIds.size()));
+                    FingerprintWritePlan.deleteAll(
+                            connection, instanceId, chunk.toArray(new String[0]), LatencyBudget.DELETE);
+                }
+                connection.commit();
+            }
+        });
+        for (String id : ids) {
+            recordWrite(id);
         }
     }
 
     /**
-     * Returns the fingerprint associated with the given unique id and the Jenkins instance ID, from the PostgreSQL
-     * instance.
+     * Deletes the fingerprint with the given id from the database owning it, or from every database while a
+     * rebalance is pending, so that a copy left behind is not moved back later.
      */
-    public @CheckForNull Fingerprint load(@NonNull String id) throws IOException {
-        try (Connection connection = getConnectionSupplier().connection();
-                PreparedStatement preparedStatement =
-                        connection.prepareStatement(Queries.getQuery(Queries.SELECT_FINGERPRINT))) {
+    private void deleteFromDatabase(@NonNull String id) throws SQLException {
+        invalidate(id);
+        forEachDatabase(Collections.singletonList(id), true, (database, ids) -> {
+            try (Connection connection = database.connection()) {
+                connection.setAutoCommit(false);
+                LatencyBudget.DELETE.begin(connection, getSynchronousCommit());
+                delete(id, connection, LatencyBudget.DELETE);
+                connection.commit();
+            }
+        });
+        recordWrite(id);
+    }
 
+    private void delete(@NonNull String id, @NonNull Connection connection, @NonNull LatencyBudget budget)
+            throws SQLException {
+        try (PreparedStatement preparedStatement = budget.prepareStatement(connection, Queries.DELETE_FINGERPRINT)) {
             preparedStatement.setString(1, id);
             preparedStatement.setString(2, instanceId);
+            preparedStatement.executeUpdate();
+        }
+    }
 
-            try (ResultSet resultSet = preparedStatement.executeQuery()) {
-                if (!resultSet.next()) {
-                    return null;
-                }
-
-                Map<String, String> fingerprintMetadata = DataConversion.extractFingerprintMetadata(
-                        id,
-                        resultSet.getTimestamp(ColumnName.TIMESTAMP),
-                        resultSet.getString(ColumnName.FILENAME),
-                        resultSet.getString(ColumnName.ORIGINAL_JOB_NAME),
-                        resultSet.getString(ColumnName.ORIGINAL_JOB_BUILD_NUMBER));
-                Map<String, Fingerprint.RangeSet> usageMetadata =
-                        DataConversion.extractUsageMetadata(resultSet.getString(ColumnName.USAGES));
-                JSONArray facets = DataConversion.extractFacets(resultSet.getString(ColumnName.FACETS));
-                String json = DataConversion.constructFingerprintJSON(fingerprintMetadata, usageMetadata, facets);
-                return (Fingerprint) XStreamHandler.getXStream().fromXML(json);
+    /**
+     * Moves every fingerprint stored in a database other than the one owning it, e.g. after a {@link Shard} has been
+     * added, to the database owning it. Each fingerprint is moved in its own transactions, copied before being deleted,
+     * so that it can always be loaded while the rebalance runs. Once all databases have been scanned, fingerprints are
+     * only looked up in the database owning them again.
+     *
+     * @return the number of fingerprints moved.
+     */
+    public int rebalanceShards() throws IOException {
+        ShardRing<ConnectionSupplier> shardRing = shardRing();
+        int moved = 0;
+        try {
+            for (ConnectionSupplier database : shardRing.members()) {
+                String after = "";
+                List<String> ids;
+                do {
+                    String from = after;
+                    ids = guarded(LatencyBudget.CLEANUP, () -> selectFingerprintIds(database, from));
+                    for (String id : ids) {
+                        if (shardRing.owner(id) != database) {
+                            // Locked once a background permit is held, so that builds saving fingerprints of the
+                            // same stripe do not wait for background calls yielding to them.
+                            guarded(LatencyBudget.CLEANUP, () -> {
+                                synchronized (lockFor(id)) {
+                                    moveFingerprint(id, database, shardRing.owner(id));
+                                }
+                                return null;
+                            });
+                            moved++;
+                        }
+                        after = id;
+                    }
+                } while (ids.size() == REBALANCE_BATCH_SIZE);
             }
         } catch (SQLException e) {
-            LOGGER.log(Level.WARNING, "PostgreSQL failed in loading fingerprint: " + id, e);
+            LOGGER.log(Level.WARNING, "PostgreSQL failed in rebalancing the fingerprint shards", e);
             throw new IOException(e);
+        } finally {
+            if (moved > 0) {
+                LOGGER.info("Moved " + moved + " fingerprints to the shard owning them");
+            }
+        }
+        if (shardRing == this.shardRing) {
+            rebalancePending = false;
+            GlobalFingerprintConfiguration.get().save();
+        }
+        return moved;
+    }
+
+    private @NonNull List<String> selectFingerprintIds(@NonNull ConnectionSupplier database, @NonNull String after)
+            throws SQLException {
+        List<String> ids = new ArrayList<>();
+        try (Connection connection = database.connection();
+                PreparedStatement preparedStatement =
+                        LatencyBudget.CLEANUP.prepareStatement(connection, Queries.SELECT_FINGERPRINT_IDS)) {
+            preparedStatement.setString(1, instanceId);
+            preparedStatement.setString(2, after);
+            preparedStatement.setInt(3, REBALANCE_BATCH_SIZE);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getString(ColumnName.FINGERPRINT_ID));
+                }
+            }
         }
+        return ids;
     }
 
     /**
-     * Deletes the fingerprint with the given id from the PostgreSQL instance.
+     * Copies the fingerprint with the given id to the database owning it, unless a newer copy was already saved there,
+     * then deletes it from the given source database.
      */
-    public void delete(@NonNull String id) throws IOException {
-        try (Connection connection = getConnectionSupplier().connection()) {
+    private void moveFingerprint(
+            @NonNull String id, @NonNull ConnectionSupplier source, @NonNull ConnectionSupplier owner)
+            throws SQLException {
+        invalidate(id);
+        Fingerprint fingerprint;
+        try (Connection connection = source.connection()) {
+            fingerprint = selectFingerprint(id, connection);
+        }
+        if (fingerprint != null) {
+            try (Connection connection = owner.connection()) {
+                if (selectFingerprint(id, connection) == null) {
+                    connection.setAutoCommit(false);
+                    LatencyBudget.CLEANUP.begin(connection, getSynchronousCommit());
+                    FingerprintWritePlan.of(fingerprint, facetCompressionThreshold).write(connection, instanceId);
+                    connection.commit();
+                }
+            }
+        }
+        try (Connection connection = source.connection()) {
             connection.setAutoCommit(false);
-            delete(id, connection);
+            LatencyBudget.CLEANUP.begin(connection, getSynchronousCommit());
+            delete(id, connection, LatencyBudget.CLEANUP);
             connection.commit();
+        }
+        recordWrite(id);
+    }
+
+    /**
+     * Writes the fingerprint writes spooled to the {@link FingerprintJournal} to PostgreSQL, in batches of
+     * {@link #REPLAY_BATCH_SIZE}, for as long as the {@link CircuitBreaker} lets calls through. The writes run in the
+     * {@link Bulkhead#BACKGROUND} lane, so that a replay after an outage does not compete with builds for permits.
+     */
+    void replayJournal() throws IOException {
+        FingerprintJournal journal = FingerprintJournal.get();
+        int replayed = 0;
+        try {
+            while (!journal.isEmpty()) {
+                for (FingerprintJournal.Record record : journal.peek(REPLAY_BATCH_SIZE)) {
+                    synchronized (lockFor(record.id)) {
+                        if (journal.get(record.id) != record) {
+                            continue;
+                        }
+                        if (!circuitBreaker.allowRequest()) {
+                            return;
+                        }
+                        try {
+                            LatencyBudget budget = record.isDelete() ? LatencyBudget.DELETE : LatencyBudget.SAVE;
+                            guarded(Bulkhead.BACKGROUND, budget, () -> {
+                                if (record.isDelete()) {
+                                    deleteFromDatabase(record.id);
+                                } else {
+                                    saveToDatabase(record.toFingerprint());
+                                }
+                                return null;
+                            });
+                        } catch (SQLException e) {
+                            if (CircuitBreaker.isTransientFailure(e) || DatabaseSchemaLoader.isSchemaNotReady(e)) {
+                                LOGGER.log(Level.FINE, "PostgreSQL still unavailable, stopping journal replay", e);
+                                return;
+                            }
+                            LOGGER.log(Level.WARNING, "PostgreSQL rejected spooled write: " + record.id, e);
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Unreadable spooled write, dropping it: " + record.id, e);
+                        }
+                        journal.remove(record);
+                        replayed++;
+                    }
+                }
+                journal.compact();
+            }
+        } finally {
+            journal.compact();
+            if (replayed > 0) {
+                LOGGER.info("Replayed " + replayed + " spooled fingerprint writes to PostgreSQL");
+            }
+        }
+    }
+
+    /**
+     * Runs the given call to PostgreSQL in the {@link Bulkhead} lane of its {@link LatencyBudget}, recording its
+     * outcome in the {@link CircuitBreaker} and timeouts in the given budget. Failures which do not indicate that
+     * PostgreSQL is unavailable, such as constraint violations, count as successful calls, and calls which gave up
+     * waiting for the schema migration do not count at all. Waiting too long for a permit of the lane fails the call
+     * without counting against PostgreSQL, and gives back the trial call of a half open breaker.
+     */
+    private <T> T guarded(@NonNull LatencyBudget budget, @NonNull DatabaseCall<T> call) throws SQLException {
+        return guarded(Bulkhead.of(budget), budget, call);
+    }
+
+    /**
+     * Like {@link #guarded(LatencyBudget, DatabaseCall)}, but runs the call in the given {@link Bulkhead} lane rather
+     * than the lane of its budget.
+     */
+    private <T> T guarded(@NonNull Bulkhead lane, @NonNull LatencyBudget budget, @NonNull DatabaseCall<T> call)
+            throws SQLException {
+        try (Bulkhead.Permit ignored = circuitBreaker.acquire(lane, budget)) {
+            return circuitBroken(budget, call);
+        }
+    }
+
+    private <T> T circuitBroken(@NonNull LatencyBudget budget, @NonNull DatabaseCall<T> call) throws SQLException {
+        long start = System.nanoTime();
+        boolean reachable = false;
+        boolean schemaReady = true;
+        try {
+            T result = call.call();
+            reachable = true;
+            return result;
         } catch (SQLException e) {
-            LOGGER.log(Level.WARNING, "PostgreSQL failed in deleting fingerprint: " + id, e);
-            throw new IOException(e);
+            if (DatabaseSchemaLoader.isSchemaNotReady(e)) {
+                schemaReady = false;
+                throw e;
+            }
+            budget.recordFailure(e);
+            reachable = !CircuitBreaker.isTransientFailure(e);
+            if (!reachable && getSynchronousCommit() != SynchronousCommit.ON) {
+                // Commits acknowledged before the server went away may be lost, so saves must not be skipped on
+                // the strength of what they were believed to have stored.
+                snapshots.clear();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            reachable = true;
+            throw e;
+        } finally {
+            if (!schemaReady) {
+                // Waiting for a schema migration tells nothing about the health of PostgreSQL.
+                circuitBreaker.releaseTrial();
+            } else if (reachable) {
+                circuitBreaker.recordSuccess(System.nanoTime() - start);
+            } else {
+                circuitBreaker.recordFailure();
+            }
         }
     }
 
-    private void delete(@NonNull String id, @NonNull Connection connection) throws SQLException {
-        try (PreparedStatement preparedStatement =
-                connection.prepareStatement(Queries.getQuery(Queries.DELETE_FINGERPRINT))) {
-            preparedStatement.setString(1, id);
-            preparedStatement.setString(2, instanceId);
-            preparedStatement.executeUpdate();
+    private static Object lockFor(@NonNull String id) {
+        return LOCKS[lockIndex(id)];
+    }
+
+    private static int lockIndex(@NonNull String id) {
+        return Math.floorMod(id.hashCode(), LOCKS.length);
+    }
+
+    /**
+     * Runs the given call holding the locks of all the fingerprints with the given ids. The lock stripes are taken in
+     * ascending order, so that concurrent bulk writes cannot deadlock.
+     */
+    private static void withLocks(@NonNull Collection<String> ids, @NonNull LockedCall call) throws IOException {
+        int[] lockIndexes = ids.stream()
+                .mapToInt(PostgreSQLFingerprintStorage::lockIndex)
+                .distinct()
+                .sorted()
+                .toArray();
+        withLocks(lockIndexes, 0, call);
+    }
+
+    private static void withLocks(@NonNull int[] lockIndexes, int from, @NonNull LockedCall call) throws IOException {
+        if (from == lockIndexes.length) {
+            call.call();
+            return;
         }
+        synchronized (LOCKS[lockIndexes[from]]) {
+            withLocks(lockIndexes, from + 1, call);
+        }
+    }
+
+    @FunctionalInterface
+    private interface LockedCall {
+        void call() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface DatabaseCall<T> {
+        T call() throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface DatabaseGroupCall {
+        void call(@NonNull ConnectionSupplier database, @NonNull List<String> ids) throws SQLException;
+    }
+
+    /**
+     * Asynchronous variant of {@link #save(Fingerprint)}, which does not block the calling thread on database I/O.
+     */
+    public @NonNull CompletableFuture<Void> saveAsync(@NonNull Fingerprint fingerprint) {
+        return StorageExecutor.get().submit(() -> {
+            save(fingerprint);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #load(String)}, which does not block the calling thread on database I/O.
+     * The returned future completes with {@code null} if no fingerprint with the given id is stored.
+     */
+    public @NonNull CompletableFuture<Fingerprint> loadAsync(@NonNull String id) {
+        return StorageExecutor.get().submit(() -> load(id));
+    }
+
+    /**
+     * Asynchronous variant of {@link #delete(String)}, which does not block the calling thread on database I/O.
+     */
+    public @NonNull CompletableFuture<Void> deleteAsync(@NonNull String id) {
+        return StorageExecutor.get().submit(() -> {
+            delete(id);
+            return null;
+        });
     }
 
     /**
-     * Returns true if there are fingerprints associate with the instance ID inside PostgreSQL instance.
+     * Returns true if there are fingerprints associate with the instance ID inside PostgreSQL instance. Only the global
+     * database is checked, since it owns a share of the fingerprints whatever the shards.
      */
     public boolean isReady() {
-        try (Connection connection = getConnectionSupplier().connection();
-                PreparedStatement preparedStatement =
-                        connection.prepareStatement(Queries.getQuery(Queries.SELECT_FINGERPRINT_EXISTS_FOR_INSTANCE))) {
+        try (Connection connection = readConnection(null);
+                PreparedStatement preparedStatement = LatencyBudget.LOAD.prepareStatement(
+                        connection, Queries.SELECT_FINGERPRINT_EXISTS_FOR_INSTANCE)) {
             preparedStatement.setString(1, instanceId);
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 if (resultSet.next()) {
@@ -230,6 +1578,164 @@ public class PostgreSQLFingerprintStorage extends FingerprintStorage {
         return false;
     }
 
+    /**
+     * Deletes the fingerprints whose timestamp is older than {@link #getRetentionDays()} days and which have no facet
+     * blocking their deletion, in transactions of at most {@link #RETENTION_BATCH_SIZE} fingerprints each, so that
+     * purging a large backlog never holds locks on more than one batch. Each {@link Shard} is purged in turn.
+     *
+     * @return the number of fingerprints deleted.
+     */
+    int purgeExpiredFingerprints() throws IOException {
+        int retentionDays = this.retentionDays;
+        if (retentionDays <= 0) {
+            return 0;
+        }
+        Timestamp expiry = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays));
+        int purged = 0;
+        try {
+            for (ConnectionSupplier database : shardRing().members()) {
+                while (circuitBreaker.allowRequest()) {
+                    List<String> ids = guarded(
+                            Bulkhead.BACKGROUND,
+                            LatencyBudget.CLEANUP,
+                            () -> deleteExpiredFingerprints(database, expiry));
+                    purged += ids.size();
+                    if (ids.size() < RETENTION_BATCH_SIZE) {
+                        break;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "PostgreSQL failed in purging expired fingerprints", e);
+            throw new IOException(e);
+        } finally {
+            if (purged > 0) {
+                LOGGER.info("Purged " + purged + " fingerprints older than " + retentionDays + " days from PostgreSQL");
+            }
+        }
+        return purged;
+    }
+
+    private @NonNull List<String> deleteExpiredFingerprints(
+            @NonNull ConnectionSupplier database, @NonNull Timestamp expiry) throws SQLException {
+        List<String> ids = new ArrayList<>();
+        try (Connection connection = database.connection()) {
+            connection.setAutoCommit(false);
+            LatencyBudget.CLEANUP.begin(connection, getSynchronousCommit());
+            try (PreparedStatement preparedStatement =
+                    LatencyBudget.CLEANUP.prepareStatement(connection, Queries.DELETE_EXPIRED_FINGERPRINTS)) {
+                preparedStatement.setString(1, instanceId);
+                preparedStatement.setTimestamp(2, expiry);
+                preparedStatement.setInt(3, RETENTION_BATCH_SIZE);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        ids.add(resultSet.getString(ColumnName.FINGERPRINT_ID));
+                    }
+                }
+            }
+            connection.commit();
+        }
+        for (String id : ids) {
+            invalidate(id);
+            recordWrite(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Applies the given changes for renamed and deleted jobs and builds in a single transaction per database,
+     * forgetting the cached state of every fingerprint they changed.
+     * <p>
+     * The changes are idempotent, so when one {@link Shard} fails they are retried on every database.
+     *
+     * @return false if PostgreSQL is unavailable, in which case the changes have to be applied again.
+     */
+    boolean maintain(@NonNull List<FingerprintMaintenance.Operation> operations) throws IOException {
+        if (!circuitBreaker.allowRequest()) {
+            return false;
+        }
+        Set<String> ids;
+        try {
+            ids = guarded(LatencyBudget.CLEANUP, () -> {
+                Set<String> changedIds = new HashSet<>();
+                for (ConnectionSupplier database : shardRing().members()) {
+                    try (Connection connection = database.connection()) {
+                        connection.setAutoCommit(false);
+                        LatencyBudget.CLEANUP.begin(connection, getSynchronousCommit());
+                        Set<String> databaseChangedIds = new HashSet<>();
+                        for (FingerprintMaintenance.Operation operation : operations) {
+                            operation.apply(connection, instanceId, databaseChangedIds);
+                        }
+                        clearStateDigests(connection, databaseChangedIds);
+                        connection.commit();
+                        changedIds.addAll(databaseChangedIds);
+                    }
+                }
+                return changedIds;
+            });
+        } catch (SQLException e) {
+            if (CircuitBreaker.isTransientFailure(e)) {
+                LOGGER.log(Level.FINE, "PostgreSQL unavailable, postponing fingerprint maintenance", e);
+                return false;
+            }
+            throw new IOException(e);
+        }
+        for (String id : ids) {
+            invalidate(id);
+            recordWrite(id);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the stored state digests of the given fingerprints, changed without being rewritten.
+     */
+    private void clearStateDigests(@NonNull Connection connection, @NonNull Set<String> ids) throws SQLException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.CLEANUP.prepareStatement(connection, Queries.CLEAR_FINGERPRINT_STATE_DIGESTS)) {
+            preparedStatement.setString(1, instanceId);
+            preparedStatement.setArray(2, connection.createArrayOf("varchar", ids.toArray()));
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    /**
+     * Returns the statistics of the tables and indexes of this storage, collected at most
+     * {@link #HEALTH_CACHE_SECONDS} seconds ago.
+     */
+    @NonNull
+    StorageHealth getHealth() {
+        StorageHealth health = this.health;
+        if (health == null || health.isOlderThan(TimeUnit.SECONDS.toMillis(HEALTH_CACHE_SECONDS))) {
+            health = collectHealth();
+            this.health = health;
+        }
+        return health;
+    }
+
+    /**
+     * Collects the statistics of the global database. Those of the shards are not collected, to keep the health check
+     * independent of their number.
+     */
+    private @NonNull StorageHealth collectHealth() {
+        if (!circuitBreaker.allowRequest()) {
+            return StorageHealth.failed("PostgreSQL is unavailable");
+        }
+        try {
+            return guarded(LatencyBudget.LOAD, () -> {
+                try (Connection connection = getConnectionSupplier().connection()) {
+                    return StorageHealth.collect(connection, instanceId, HEALTH_HOT_FINGERPRINTS);
+                }
+            });
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "PostgreSQL failed in collecting storage statistics", e);
+            return StorageHealth.failed(e.getMessage());
+        }
+    }
+
     @Override
     public void iterateAndCleanupFingerprints(TaskListener taskListener) {
         // TODO
@@ -243,40 +1749,33 @@ public class PostgreSQLFingerprintStorage extends FingerprintStorage {
 
         @Override
         protected void initialize(Connection connection) throws SQLException {
-            if (!DatabaseSchemaLoader.MIGRATED) {
-                DatabaseSchemaLoader.migrateSchema();
-            }
+            DatabaseSchemaLoader.awaitMigration();
         }
     }
 
     abstract static class ConnectionSupplier implements AutoCloseable {
 
-        private transient Connection connection;
-
         protected abstract Database database();
 
         protected void initialize(Connection connection) throws SQLException {}
 
-        synchronized Connection connection() throws SQLException {
-            if (connection == null || connection.isClosed()) {
-                Connection _connection = database().getDataSource().getConnection();
-                initialize(_connection);
-                connection = _connection;
+        /**
+         * Returns a connection from the connection pool of {@link #database()}. Closing it returns it to the pool, so
+         * concurrent callers never share a connection.
+         */
+        Connection connection() throws SQLException {
+            Connection connection = database().getDataSource().getConnection();
+            try {
+                initialize(connection);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
             }
             return connection;
         }
 
         @Override
-        public void close() {
-            try {
-                if (connection != null) {
-                    connection.close();
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-            connection = null;
-        }
+        public void close() {}
     }
 
     @Extension
@@ -38,11 +38,33 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 public class Queries {
 
     static final String INSERT_FINGERPRINT = "insert_fingerprint";
+    static final String SELECT_FINGERPRINT_STATE_DIGEST = "select_fingerprint_state_digest";
+    static final String UPDATE_FINGERPRINT_STATE_DIGEST = "update_fingerprint_state_digest";
+    static final String CLEAR_FINGERPRINT_STATE_DIGESTS = "clear_fingerprint_state_digests";
     static final String INSERT_FINGERPRINT_JOB_BUILD_RELATION = "insert_fingerprint_job_build_relation";
+    static final String INSERT_FINGERPRINT_JOB_BUILD_RELATION_IF_ABSENT =
+            "insert_fingerprint_job_build_relation_if_absent";
     static final String INSERT_FINGERPRINT_FACET_RELATION = "insert_fingerprint_facet_relation";
+    static final String INSERT_FINGERPRINT_FACET_RELATION_COMPRESSED = "insert_fingerprint_facet_relation_compressed";
+    static final String INSERT_FINGERPRINTS = "insert_fingerprints";
+    static final String INSERT_FINGERPRINT_JOB_BUILD_RELATIONS = "insert_fingerprint_job_build_relations";
+    static final String COPY_FINGERPRINT_JOB_BUILD_RELATIONS = "copy_fingerprint_job_build_relations";
+    static final String INSERT_FINGERPRINT_FACET_RELATIONS = "insert_fingerprint_facet_relations";
     static final String SELECT_FINGERPRINT = "select_fingerprint";
+    static final String SELECT_FINGERPRINT_IDS = "select_fingerprint_ids";
+    static final String SELECT_FINGERPRINT_IDS_BY_FACET = "select_fingerprint_ids_by_facet";
+    static final String SELECT_FINGERPRINT_IDS_BY_FACET_ENTRY = "select_fingerprint_ids_by_facet_entry";
+    static final String SELECT_FINGERPRINTS_METADATA = "select_fingerprints_metadata";
+    static final String SELECT_FINGERPRINTS_USAGES = "select_fingerprints_usages";
     static final String SELECT_FINGERPRINT_EXISTS_FOR_INSTANCE = "select_fingerprint_exists_for_instance";
     static final String DELETE_FINGERPRINT = "delete_fingerprint";
+    static final String DELETE_FINGERPRINTS = "delete_fingerprints";
+    static final String DELETE_EXPIRED_FINGERPRINTS = "delete_expired_fingerprints";
+    static final String RENAME_JOB_USAGES = "rename_job_usages";
+    static final String RENAME_ORIGINAL_JOB = "rename_original_job";
+    static final String DELETE_JOB_USAGES = "delete_job_usages";
+    static final String DELETE_BUILD_USAGES = "delete_build_usages";
+    static final String SET_LATENCY_BUDGET = "set_latency_budget";
     static final String CHECK_FINGERPRINT_TABLE_EXISTS = "check_fingerprint_table_exists";
     static final String CHECK_FINGERPRINT_JOB_BUILD_RELATION_TABLE_EXISTS =
             "check_fingerprint_job_build_relation_table_exists";
@@ -50,6 +72,10 @@ public class Queries {
     static final String SELECT_FINGERPRINT_COUNT = "select_fingerprint_count";
     static final String SELECT_FINGERPRINT_JOB_BUILD_RELATION_COUNT = "select_fingerprint_job_build_relation_count";
     static final String SELECT_FINGERPRINT_FACET_RELATION_COUNT = "select_fingerprint_facet_relation_count";
+    static final String SELECT_FINGERPRINT_COUNTERS = "select_fingerprint_counters";
+    static final String SELECT_TABLE_STATISTICS = "select_table_statistics";
+    static final String SELECT_INDEX_STATISTICS = "select_index_statistics";
+    static final String SELECT_HOT_FINGERPRINTS = "select_hot_fingerprints";
 
     private static final String propertiesFileName = "Queries.properties";
     private static Properties properties;
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.database.Database;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Read-only database, typically a hot-standby replica of the global database, which serves fingerprint reads of
+ * {@link PostgreSQLFingerprintStorage}.
+ * <p>
+ * Fingerprints written by this Jenkins instance within the last {@link #getReadYourWritesWindow()} seconds are still
+ * read from the global database, so that replication lag never hides a write from the instance that made it.
+ * <p>
+ * Reads not specific to fingerprints, e.g. searches and counters, are routed by the time of the last write of any
+ * fingerprint: they are served by the replica only once this instance has not written for the whole window. This keeps
+ * them consistent with the writes of this instance, at the cost of sending them to the global database for as long as
+ * it keeps writing.
+ */
+public class ReadReplica extends AbstractDescribableImpl<ReadReplica> {
+
+    static final int MAX_RECENT_WRITES = 10_000;
+
+    private final Database database;
+
+    private int readYourWritesWindow = 5;
+
+    /**
+     * Time of the recent writes of each fingerprint, oldest first.
+     */
+    private transient LinkedHashMap<String, Long> recentWrites;
+
+    private transient volatile Long lastWrite;
+
+    /**
+     * Time of the latest write evicted from {@link #recentWrites} while still within the window, until which every
+     * fingerprint counts as recently written.
+     */
+    private transient volatile Long lastEvictedWrite;
+
+    private transient PostgreSQLFingerprintStorage.ConnectionSupplier connectionSupplier;
+
+    @DataBoundConstructor
+    public ReadReplica(@NonNull Database database) {
+        this.database = database;
+    }
+
+    public @NonNull Database getDatabase() {
+        return database;
+    }
+
+    /**
+     * Returns the number of seconds after a write during which the written fingerprint is read from the global
+     * database.
+     */
+    public int getReadYourWritesWindow() {
+        return readYourWritesWindow;
+    }
+
+    @DataBoundSetter
+    public void setReadYourWritesWindow(int readYourWritesWindow) {
+        this.readYourWritesWindow = Math.max(0, readYourWritesWindow);
+    }
+
+    synchronized @NonNull PostgreSQLFingerprintStorage.ConnectionSupplier getConnectionSupplier() {
+        if (connectionSupplier == null) {
+            connectionSupplier = new PostgreSQLFingerprintStorage.ConnectionSupplier() {
+                @Override
+                protected Database database() {
+                    return database;
+                }
+
+                @Override
+                protected void initialize(Connection connection) throws SQLException {
+                    connection.setReadOnly(true);
+                }
+            };
+        }
+        return connectionSupplier;
+    }
+
+    private @NonNull Map<String, Long> getRecentWrites() {
+        if (recentWrites == null) {
+            recentWrites = new LinkedHashMap<>();
+        }
+        return recentWrites;
+    }
+
+    /**
+     * Records that the fingerprint with the given id has just been written to the global database. Writes are evicted
+     * oldest first, once out of the window or beyond {@link #MAX_RECENT_WRITES}.
+     */
+    synchronized void recordWrite(@NonNull String id) {
+        Map<String, Long> recentWrites = getRecentWrites();
+        long now = System.nanoTime();
+        recentWrites.remove(id);
+        recentWrites.put(id, now);
+        Iterator<Long> iterator = recentWrites.values().iterator();
+        while (iterator.hasNext()) {
+            long writeTime = iterator.next();
+            boolean withinWindow = isWithinWindow(writeTime, now);
+            if (withinWindow && recentWrites.size() <= MAX_RECENT_WRITES) {
+                break;
+            }
+            if (withinWindow) {
+                lastEvictedWrite = writeTime;
+            }
+            iterator.remove();
+        }
+        lastWrite = now;
+    }
+
+    /**
+     * Returns true if the fingerprint with the given id, or any fingerprint if {@code id} is {@code null}, has been
+     * written within the read-your-writes window.
+     */
+    boolean isRecentlyWritten(@CheckForNull String id) {
+        if (id == null) {
+            return isWithinWindow(lastWrite, System.nanoTime());
+        }
+        return isAnyRecentlyWritten(Collections.singleton(id));
+    }
+
+    /**
+     * Returns true if any of the fingerprints with the given ids has been written within the read-your-writes window.
+     */
+    boolean isAnyRecentlyWritten(@NonNull Collection<String> ids) {
+        long now = System.nanoTime();
+        if (!isWithinWindow(lastWrite, now)) {
+            return false;
+        }
+        if (isWithinWindow(lastEvictedWrite, now)) {
+            return true;
+        }
+        synchronized (this) {
+            Map<String, Long> recentWrites = getRecentWrites();
+            for (String id : ids) {
+                if (isWithinWindow(recentWrites.get(id), now)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isWithinWindow(@CheckForNull Long writeTime, long now) {
+        return writeTime != null && now - writeTime < TimeUnit.SECONDS.toNanos(readYourWritesWindow);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ReadReplica> {
+        @Override
+        public @NonNull String getDisplayName() {
+            return Messages.ReadReplica_DisplayName();
+        }
+    }
+}
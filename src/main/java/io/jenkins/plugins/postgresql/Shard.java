@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.sql.Connection;
+import java.sql.SQLException;
+import org.jenkinsci.plugins.database.Database;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Additional database storing a share of the fingerprints of {@link PostgreSQLFingerprintStorage}, alongside the
+ * global database. Fingerprints are routed to a database by a {@link ShardRing} built from the names of the shards,
+ * so the name of a shard must not change once it stores fingerprints.
+ */
+public class Shard extends AbstractDescribableImpl<Shard> {
+
+    /**
+     * Name of the global database on the {@link ShardRing}.
+     */
+    static final String GLOBAL = "global";
+
+    private final String name;
+
+    private final Database database;
+
+    private transient PostgreSQLFingerprintStorage.ConnectionSupplier connectionSupplier;
+
+    private transient volatile boolean migrated;
+
+    @DataBoundConstructor
+    public Shard(@NonNull String name, @NonNull Database database) {
+        this.name = Util.fixEmptyAndTrim(name);
+        if (this.name == null || this.name.equals(GLOBAL)) {
+            throw new IllegalArgumentException("Invalid shard name: " + name);
+        }
+        this.database = database;
+    }
+
+    public @NonNull String getName() {
+        return name;
+    }
+
+    public @NonNull Database getDatabase() {
+        return database;
+    }
+
+    synchronized @NonNull PostgreSQLFingerprintStorage.ConnectionSupplier getConnectionSupplier() {
+        if (connectionSupplier == null) {
+            connectionSupplier = new PostgreSQLFingerprintStorage.ConnectionSupplier() {
+                @Override
+                protected Database database() {
+                    return database;
+                }
+
+                @Override
+                protected void initialize(Connection connection) throws SQLException {
+                    migrate();
+                }
+            };
+        }
+        return connectionSupplier;
+    }
+
+    /**
+     * Migrates the schema of this shard, once.
+     */
+    private void migrate() throws SQLException {
+        if (migrated) {
+            return;
+        }
+        synchronized (this) {
+            if (!migrated) {
+                try {
+                    DatabaseSchemaLoader.migrate(database.getDataSource());
+                } catch (RuntimeException e) {
+                    throw new SQLException("Failed to migrate the schema of shard " + name, "57P03", e);
+                }
+                migrated = true;
+            }
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<Shard> {
+        @Override
+        public @NonNull String getDisplayName() {
+            return Messages.Shard_DisplayName();
+        }
+
+        public FormValidation doCheckName(@QueryParameter String value) {
+            String name = Util.fixEmptyAndTrim(value);
+            if (name == null) {
+                return FormValidation.error(Messages.Shard_NameRequired());
+            }
+            if (name.equals(GLOBAL)) {
+                return FormValidation.error(Messages.Shard_NameReserved(GLOBAL));
+            }
+            return FormValidation.ok();
+        }
+    }
+}
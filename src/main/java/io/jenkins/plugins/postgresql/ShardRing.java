@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring routing each fingerprint to one of the databases of {@link PostgreSQLFingerprintStorage}.
+ * <p>
+ * Each database is placed on the ring at {@link #VIRTUAL_NODES} positions derived from its name, and owns the
+ * fingerprints whose id hashes between its positions and the previous ones. Adding a database therefore only moves
+ * the fingerprints it takes over, about one in the new number of databases, and reordering them moves none.
+ */
+final class ShardRing<T> {
+
+    static final int VIRTUAL_NODES = 128;
+
+    private final List<T> members;
+    private final TreeMap<Long, T> positions = new TreeMap<>();
+
+    /**
+     * Creates the ring of the given databases, by distinct name.
+     */
+    ShardRing(@NonNull Map<String, T> members) {
+        this.members = Collections.unmodifiableList(new ArrayList<>(members.values()));
+        for (Map.Entry<String, T> member : members.entrySet()) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                positions.putIfAbsent(hash(member.getKey() + '#' + node), member.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the database owning the fingerprint with the given id.
+     */
+    @NonNull
+    T owner(@NonNull String id) {
+        Map.Entry<Long, T> position = positions.ceilingEntry(hash(id));
+        return (position != null ? position : positions.firstEntry()).getValue();
+    }
+
+    /**
+     * Returns all the databases, in the order they were given.
+     */
+    @NonNull
+    List<T> members() {
+        return members;
+    }
+
+    private static long hash(@NonNull String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Runs storage operations off the calling thread, for the asynchronous variants of the
+ * {@link PostgreSQLFingerprintStorage} operations.
+ * <p>
+ * Operations run on virtual threads when the JVM supports them, and on a bounded pool of daemon threads otherwise.
+ * In both cases at most {@link #MAX_CONCURRENCY} operations access the database at the same time. The parts an
+ * operation {@linkplain #fork forks} run on a separate unbounded pool, so that they never wait for a thread held by
+ * the operation waiting for them.
+ */
+@Restricted(NoExternalUse.class)
+public final class StorageExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(StorageExecutor.class.getName());
+
+    static final int MAX_CONCURRENCY =
+            SystemProperties.getInteger(PostgreSQLFingerprintStorage.class.getName() + ".asyncConcurrency", 8);
+
+    private static StorageExecutor INSTANCE;
+
+    private final ExecutorService executorService;
+    private final ExecutorService forkExecutorService;
+    private final Semaphore permits = new Semaphore(MAX_CONCURRENCY, true);
+
+    private StorageExecutor(@NonNull ExecutorService executorService, @NonNull ExecutorService forkExecutorService) {
+        this.executorService = executorService;
+        this.forkExecutorService = forkExecutorService;
+    }
+
+    static synchronized @NonNull StorageExecutor get() {
+        if (INSTANCE == null) {
+            ExecutorService virtualThreads = createVirtualThreadExecutorService();
+            INSTANCE = virtualThreads != null
+                    ? new StorageExecutor(virtualThreads, virtualThreads)
+                    : createPlatformThreadExecutor();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Replaces the executor by one running on platform threads, as on JVMs without virtual threads. For tests only.
+     */
+    static synchronized void usePlatformThreads() {
+        shutdown();
+        INSTANCE = createPlatformThreadExecutor();
+    }
+
+    private static @CheckForNull ExecutorService createVirtualThreadExecutorService() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.FINE, "Virtual threads are not available, falling back to a platform thread pool", e);
+            return null;
+        }
+    }
+
+    private static @NonNull StorageExecutor createPlatformThreadExecutor() {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+                MAX_CONCURRENCY,
+                MAX_CONCURRENCY,
+                60,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PostgreSQLFingerprintStorage.async"));
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        ThreadPoolExecutor forkThreadPoolExecutor = new ThreadPoolExecutor(
+                0,
+                Integer.MAX_VALUE,
+                60,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PostgreSQLFingerprintStorage.fork"));
+        return new StorageExecutor(threadPoolExecutor, forkThreadPoolExecutor);
+    }
+
+    /**
+     * Runs the given task asynchronously, once one of the {@link #MAX_CONCURRENCY} permits is available.
+     */
+    <T> @NonNull CompletableFuture<T> submit(@NonNull Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executorService.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                permits.release();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs the given part of an operation asynchronously without waiting for a permit, so that an operation which
+     * already holds one can fan out, e.g. to the shards of the storage, without deadlocking.
+     */
+    <T> @NonNull CompletableFuture<T> fork(@NonNull Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        forkExecutorService.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    @Terminator
+    public static synchronized void shutdown() {
+        if (INSTANCE != null) {
+            INSTANCE.executorService.shutdown();
+            INSTANCE.forkExecutorService.shutdown();
+            INSTANCE = null;
+        }
+    }
+}
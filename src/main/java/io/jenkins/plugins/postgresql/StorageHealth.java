@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Functions;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Statistics of the tables and indexes of {@link PostgreSQLFingerprintStorage}, as collected from the
+ * {@code pg_stat_*} and {@code pg_stats} catalogs. Collecting them never scans the data tables, so row counts and hot
+ * fingerprints are the estimates of the statistics collector and {@code ANALYZE}, across all Jenkins instances
+ * sharing the database.
+ */
+@Restricted(NoExternalUse.class)
+public final class StorageHealth {
+
+    private final long collectedAt;
+    private final List<TableStatistics> tables;
+    private final List<IndexStatistics> indexes;
+    private final List<HotFingerprint> hotUsageFingerprints;
+    private final List<HotFingerprint> hotFacetFingerprints;
+    private final String error;
+
+    private StorageHealth(
+            @NonNull List<TableStatistics> tables,
+            @NonNull List<IndexStatistics> indexes,
+            @NonNull List<HotFingerprint> hotUsageFingerprints,
+            @NonNull List<HotFingerprint> hotFacetFingerprints,
+            @CheckForNull String error) {
+        this.collectedAt = System.currentTimeMillis();
+        this.tables = Collections.unmodifiableList(tables);
+        this.indexes = Collections.unmodifiableList(indexes);
+        this.hotUsageFingerprints = Collections.unmodifiableList(hotUsageFingerprints);
+        this.hotFacetFingerprints = Collections.unmodifiableList(hotFacetFingerprints);
+        this.error = error;
+    }
+
+    /**
+     * Collects the statistics through the given connection, listing up to {@code hotFingerprints} hot fingerprints per
+     * relation table. The hot fingerprints are found in the database-wide statistics of PostgreSQL, but only those the
+     * given instance stores are listed.
+     */
+    static @NonNull StorageHealth collect(
+            @NonNull Connection connection, @NonNull String instanceId, int hotFingerprints) throws SQLException {
+        List<TableStatistics> tables = new ArrayList<>();
+        try (PreparedStatement preparedStatement =
+                        LatencyBudget.LOAD.prepareStatement(connection, Queries.SELECT_TABLE_STATISTICS);
+                ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                tables.add(new TableStatistics(
+                        resultSet.getString(ColumnName.NAME),
+                        resultSet.getLong(ColumnName.LIVE_TUPLES),
+                        resultSet.getLong(ColumnName.DEAD_TUPLES),
+                        resultSet.getTimestamp(ColumnName.LAST_AUTOVACUUM),
+                        resultSet.getLong(ColumnName.TABLE_SIZE),
+                        resultSet.getLong(ColumnName.INDEXES_SIZE)));
+            }
+        }
+
+        List<IndexStatistics> indexes = new ArrayList<>();
+        try (PreparedStatement preparedStatement =
+                        LatencyBudget.LOAD.prepareStatement(connection, Queries.SELECT_INDEX_STATISTICS);
+                ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                indexes.add(new IndexStatistics(
+                        resultSet.getString(ColumnName.TABLE_NAME),
+                        resultSet.getString(ColumnName.NAME),
+                        resultSet.getLong(ColumnName.SCANS),
+                        resultSet.getLong(ColumnName.TUPLES_READ),
+                        resultSet.getLong(ColumnName.SIZE)));
+            }
+        }
+
+        return new StorageHealth(
+                tables,
+                indexes,
+                collectHotFingerprints(connection, "fingerprint_job_build_relation", instanceId, hotFingerprints),
+                collectHotFingerprints(connection, "fingerprint_facet_relation", instanceId, hotFingerprints),
+                null);
+    }
+
+    private static @NonNull List<HotFingerprint> collectHotFingerprints(
+            @NonNull Connection connection, @NonNull String table, @NonNull String instanceId, int limit)
+            throws SQLException {
+        List<HotFingerprint> hotFingerprints = new ArrayList<>();
+        try (PreparedStatement preparedStatement =
+                LatencyBudget.LOAD.prepareStatement(connection, Queries.SELECT_HOT_FINGERPRINTS)) {
+            preparedStatement.setString(1, table);
+            preparedStatement.setString(2, instanceId);
+            preparedStatement.setInt(3, limit);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    hotFingerprints.add(new HotFingerprint(
+                            resultSet.getString(ColumnName.FINGERPRINT_ID),
+                            resultSet.getLong(ColumnName.ESTIMATED_ROWS)));
+                }
+            }
+        }
+        return hotFingerprints;
+    }
+
+    /**
+     * Returns statistics recording that they could not be collected.
+     */
+    static @NonNull StorageHealth failed(@NonNull String error) {
+        return new StorageHealth(
+                Collections.emptyList(),
+                Collections.emptyList(),
+                Collections.emptyList(),
+                Collections.emptyList(),
+                error);
+    }
+
+    boolean isOlderThan(long millis) {
+        return System.currentTimeMillis() - collectedAt > millis;
+    }
+
+    public @NonNull Date getCollectedAt() {
+        return new Date(collectedAt);
+    }
+
+    public @NonNull List<TableStatistics> getTables() {
+        return tables;
+    }
+
+    public @NonNull List<IndexStatistics> getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * Returns the fingerprints with the most usage rows.
+     */
+    public @NonNull List<HotFingerprint> getHotUsageFingerprints() {
+        return hotUsageFingerprints;
+    }
+
+    /**
+     * Returns the fingerprints with the most facet rows.
+     */
+    public @NonNull List<HotFingerprint> getHotFacetFingerprints() {
+        return hotFacetFingerprints;
+    }
+
+    /**
+     * Returns why the statistics could not be collected, if they could not.
+     */
+    public @CheckForNull String getError() {
+        return error;
+    }
+
+    @Restricted(NoExternalUse.class)
+    public static final class TableStatistics {
+        private final String name;
+        private final long liveTuples;
+        private final long deadTuples;
+        private final Timestamp lastAutovacuum;
+        private final long tableSize;
+        private final long indexesSize;
+
+        TableStatistics(
+                String name,
+                long liveTuples,
+                long deadTuples,
+                @CheckForNull Timestamp lastAutovacuum,
+                long tableSize,
+                long indexesSize) {
+            this.name = name;
+            this.liveTuples = liveTuples;
+            this.deadTuples = deadTuples;
+            this.lastAutovacuum = lastAutovacuum;
+            this.tableSize = tableSize;
+            this.indexesSize = indexesSize;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLiveTuples() {
+            return liveTuples;
+        }
+
+        public long getDeadTuples() {
+            return deadTuples;
+        }
+
+        /**
+         * Returns the percentage of dead tuples among all tuples of the table.
+         */
+        public String getDeadTupleRatio() {
+            long tuples = liveTuples + deadTuples;
+            return tuples == 0 ? "0%" : String.format("%.1f%%", 100.0 * deadTuples / tuples);
+        }
+
+        public @CheckForNull Date getLastAutovacuum() {
+            return lastAutovacuum != null ? new Date(lastAutovacuum.getTime()) : null;
+        }
+
+        public String getTableSize() {
+            return Functions.humanReadableByteSize(tableSize);
+        }
+
+        public String getIndexesSize() {
+            return Functions.humanReadableByteSize(indexesSize);
+        }
+    }
+
+    @Restricted(NoExternalUse.class)
+    public static final class IndexStatistics {
+        private final String tableName;
+        private final String name;
+        private final long scans;
+        private final long tuplesRead;
+        private final long size;
+
+        IndexStatistics(String tableName, String name, long scans, long tuplesRead, long size) {
+            this.tableName = tableName;
+            this.name = name;
+            this.scans = scans;
+            this.tuplesRead = tuplesRead;
+            this.size = size;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getScans() {
+            return scans;
+        }
+
+        public long getTuplesRead() {
+            return tuplesRead;
+        }
+
+        public String getSize() {
+            return Functions.humanReadableByteSize(size);
+        }
+    }
+
+    @Restricted(NoExternalUse.class)
+    public static final class HotFingerprint {
+        private final String id;
+        private final long estimatedRows;
+
+        HotFingerprint(String id, long estimatedRows) {
+            this.id = id;
+            this.estimatedRows = estimatedRows;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getEstimatedRows() {
+            return estimatedRows;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jenkins.fingerprints.FingerprintStorage;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Administrative page showing the {@link StorageHealth} of {@link PostgreSQLFingerprintStorage}.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class StorageHealthLink extends ManagementLink {
+
+    static final String URL_NAME = "postgresql-fingerprint-storage";
+
+    @Override
+    public @CheckForNull String getIconFileName() {
+        return getStorage() != null ? "symbol-analytics" : null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.StorageHealthLink_DisplayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.StorageHealthLink_Description();
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @Override
+    public @NonNull Category getCategory() {
+        return Category.STATUS;
+    }
+
+    /**
+     * Returns the cached statistics of the storage, or {@code null} if fingerprints are not stored in PostgreSQL.
+     */
+    public @CheckForNull StorageHealth getHealth() {
+        PostgreSQLFingerprintStorage storage = getStorage();
+        return storage != null ? storage.getHealth() : null;
+    }
+
+    /**
+     * Returns the {@link Bulkhead} lanes of database access, or none if fingerprints are not stored in PostgreSQL.
+     */
+    public @NonNull List<Bulkhead> getBulkheads() {
+        return getStorage() != null ? Arrays.asList(Bulkhead.values()) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the {@link LatencyBudget}s of the operations, with their timeouts, or none if fingerprints are not stored
+     * in PostgreSQL.
+     */
+    public @NonNull List<LatencyBudget> getLatencyBudgets() {
+        return getStorage() != null ? Arrays.asList(LatencyBudget.values()) : Collections.emptyList();
+    }
+
+    private static @CheckForNull PostgreSQLFingerprintStorage getStorage() {
+        FingerprintStorage fingerprintStorage = FingerprintStorage.get();
+        return fingerprintStorage instanceof PostgreSQLFingerprintStorage
+                ? (PostgreSQLFingerprintStorage) fingerprintStorage
+                : null;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+/**
+ * Durability of the commits of fingerprint writes, applied with the transaction-local {@code synchronous_commit}
+ * setting so that transactions of other plugins sharing the database are not affected.
+ */
+public enum SynchronousCommit {
+    /**
+     * Commits wait for the WAL flush configured on the server, so committed fingerprint writes are never lost.
+     */
+    ON(null) {
+        @Override
+        public String getDisplayName() {
+            return Messages.SynchronousCommit_On();
+        }
+    },
+    /**
+     * Commits wait for the local WAL flush but not for standbys, so committed fingerprint writes may be lost when
+     * failing over to a standby, but not when the primary crashes.
+     */
+    LOCAL("local") {
+        @Override
+        public String getDisplayName() {
+            return Messages.SynchronousCommit_Local();
+        }
+    },
+    /**
+     * Commits do not wait for any WAL flush, so fingerprint writes committed within up to three times
+     * {@code wal_writer_delay} before a crash of PostgreSQL may be lost. The database is never left inconsistent.
+     */
+    OFF("off") {
+        @Override
+        public String getDisplayName() {
+            return Messages.SynchronousCommit_Off();
+        }
+    };
+
+    private final String setting;
+
+    SynchronousCommit(@CheckForNull String setting) {
+        this.setting = setting;
+    }
+
+    /**
+     * Returns the value of {@code synchronous_commit} to set, or {@code null} to keep the value of the server.
+     */
+    @CheckForNull
+    String getSetting() {
+        return setting;
+    }
+
+    public abstract String getDisplayName();
+}
@@ -0,0 +1,14 @@
+ALTER TABLE FINGERPRINT_FACET_RELATION
+  ADD COLUMN FACET_ENTRY_HASH BYTEA;
+
+UPDATE FINGERPRINT_FACET_RELATION
+  SET FACET_ENTRY_HASH = sha256(convert_to(FACET_ENTRY::text, 'UTF8'));
+
+ALTER TABLE FINGERPRINT_FACET_RELATION
+  ALTER COLUMN FACET_ENTRY_HASH SET NOT NULL;
+
+ALTER TABLE FINGERPRINT_FACET_RELATION
+  DROP CONSTRAINT FINGERPRINT_FACET_RELATION_PKEY;
+
+ALTER TABLE FINGERPRINT_FACET_RELATION
+  ADD PRIMARY KEY(FINGERPRINT_ID, INSTANCE_ID, FACET_NAME, FACET_ENTRY_HASH);
@@ -0,0 +1,21 @@
+-- A failed concurrent build leaves an invalid index behind, which IF NOT EXISTS would keep: drop it to rebuild it.
+DO $$
+BEGIN
+  IF EXISTS (SELECT 1 FROM pg_index WHERE indexrelid = to_regclass('fingerprint_timestamp_index') AND NOT indisvalid)
+  THEN
+    DROP INDEX fingerprint_timestamp_index;
+  END IF;
+  IF EXISTS (SELECT 1 FROM pg_index
+      WHERE indexrelid = to_regclass('fingerprint_facet_relation_deletion_blocked_index') AND NOT indisvalid)
+  THEN
+    DROP INDEX fingerprint_facet_relation_deletion_blocked_index;
+  END IF;
+END
+$$;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS FINGERPRINT_TIMESTAMP_INDEX
+  ON FINGERPRINT USING BRIN (TIMESTAMP);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS FINGERPRINT_FACET_RELATION_DELETION_BLOCKED_INDEX
+  ON FINGERPRINT_FACET_RELATION (FINGERPRINT_ID, INSTANCE_ID)
+  WHERE DELETION_BLOCKED;
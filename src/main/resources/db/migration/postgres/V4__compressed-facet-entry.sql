@@ -0,0 +1,12 @@
+ALTER TABLE FINGERPRINT_FACET_RELATION
+  ADD COLUMN FACET_ENTRY_COMPRESSED BYTEA;
+
+ALTER TABLE FINGERPRINT_FACET_RELATION
+  ALTER COLUMN FACET_ENTRY_COMPRESSED SET STORAGE EXTERNAL;
+
+ALTER TABLE FINGERPRINT_FACET_RELATION
+  ALTER COLUMN FACET_ENTRY DROP NOT NULL;
+
+ALTER TABLE FINGERPRINT_FACET_RELATION
+  ADD CONSTRAINT FINGERPRINT_FACET_RELATION_ENTRY_CHECK
+  CHECK ((FACET_ENTRY IS NULL) <> (FACET_ENTRY_COMPRESSED IS NULL)) NOT VALID;
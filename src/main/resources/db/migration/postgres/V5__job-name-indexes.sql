@@ -0,0 +1,22 @@
+-- A failed concurrent build leaves an invalid index behind, which IF NOT EXISTS would keep: drop it to rebuild it.
+DO $$
+BEGIN
+  IF EXISTS (SELECT 1 FROM pg_index
+      WHERE indexrelid = to_regclass('fingerprint_job_build_relation_job_index') AND NOT indisvalid)
+  THEN
+    DROP INDEX fingerprint_job_build_relation_job_index;
+  END IF;
+  IF EXISTS (SELECT 1 FROM pg_index
+      WHERE indexrelid = to_regclass('fingerprint_original_job_name_index') AND NOT indisvalid)
+  THEN
+    DROP INDEX fingerprint_original_job_name_index;
+  END IF;
+END
+$$;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS FINGERPRINT_JOB_BUILD_RELATION_JOB_INDEX
+  ON FINGERPRINT_JOB_BUILD_RELATION (INSTANCE_ID, JOB varchar_pattern_ops, BUILD_NUMBER);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS FINGERPRINT_ORIGINAL_JOB_NAME_INDEX
+  ON FINGERPRINT (INSTANCE_ID, ORIGINAL_JOB_NAME varchar_pattern_ops)
+  WHERE ORIGINAL_JOB_NAME IS NOT NULL;
@@ -0,0 +1,21 @@
+-- A failed concurrent build leaves an invalid index behind, which IF NOT EXISTS would keep: drop it to rebuild it.
+DO $$
+BEGIN
+  IF EXISTS (SELECT 1 FROM pg_index
+      WHERE indexrelid = to_regclass('fingerprint_facet_relation_entry_index') AND NOT indisvalid)
+  THEN
+    DROP INDEX fingerprint_facet_relation_entry_index;
+  END IF;
+  IF EXISTS (SELECT 1 FROM pg_index
+      WHERE indexrelid = to_regclass('fingerprint_facet_relation_name_index') AND NOT indisvalid)
+  THEN
+    DROP INDEX fingerprint_facet_relation_name_index;
+  END IF;
+END
+$$;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS FINGERPRINT_FACET_RELATION_ENTRY_INDEX
+  ON FINGERPRINT_FACET_RELATION USING GIN (FACET_ENTRY jsonb_path_ops);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS FINGERPRINT_FACET_RELATION_NAME_INDEX
+  ON FINGERPRINT_FACET_RELATION (INSTANCE_ID, FACET_NAME, FINGERPRINT_ID);
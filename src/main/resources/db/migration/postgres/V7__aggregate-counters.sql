@@ -0,0 +1,136 @@
+CREATE TABLE FINGERPRINT_COUNTER
+  (INSTANCE_ID            CHAR(32)    NOT NULL,
+   SLOT                   SMALLINT    NOT NULL,
+   FINGERPRINTS           BIGINT      NOT NULL DEFAULT 0,
+   USAGES                 BIGINT      NOT NULL DEFAULT 0,
+   FACETS                 BIGINT      NOT NULL DEFAULT 0,
+   BLOCKED_FINGERPRINTS   BIGINT      NOT NULL DEFAULT 0,
+   PRIMARY KEY(INSTANCE_ID, SLOT));
+
+-- Each backend adds to one of 16 rows per instance, so that concurrent transactions rarely wait on the same counter
+-- row, and a transaction never locks more than one of them.
+
+CREATE FUNCTION FINGERPRINT_COUNT() RETURNS TRIGGER LANGUAGE plpgsql AS $$
+BEGIN
+  IF TG_OP = 'INSERT' THEN
+    INSERT INTO FINGERPRINT_COUNTER AS counter (INSTANCE_ID, SLOT, FINGERPRINTS)
+      SELECT INSTANCE_ID, pg_backend_pid() % 16, COUNT(*) FROM new_rows GROUP BY INSTANCE_ID
+      ON CONFLICT (INSTANCE_ID, SLOT) DO UPDATE SET FINGERPRINTS = counter.FINGERPRINTS + EXCLUDED.FINGERPRINTS;
+  ELSE
+    INSERT INTO FINGERPRINT_COUNTER AS counter (INSTANCE_ID, SLOT, FINGERPRINTS)
+      SELECT INSTANCE_ID, pg_backend_pid() % 16, -COUNT(*) FROM old_rows GROUP BY INSTANCE_ID
+      ON CONFLICT (INSTANCE_ID, SLOT) DO UPDATE SET FINGERPRINTS = counter.FINGERPRINTS + EXCLUDED.FINGERPRINTS;
+  END IF;
+  RETURN NULL;
+END;
+$$;
+
+CREATE FUNCTION FINGERPRINT_JOB_BUILD_RELATION_COUNT() RETURNS TRIGGER LANGUAGE plpgsql AS $$
+BEGIN
+  IF TG_OP = 'INSERT' THEN
+    INSERT INTO FINGERPRINT_COUNTER AS counter (INSTANCE_ID, SLOT, USAGES)
+      SELECT INSTANCE_ID, pg_backend_pid() % 16, COUNT(*) FROM new_rows GROUP BY INSTANCE_ID
+      ON CONFLICT (INSTANCE_ID, SLOT) DO UPDATE SET USAGES = counter.USAGES + EXCLUDED.USAGES;
+  ELSE
+    INSERT INTO FINGERPRINT_COUNTER AS counter (INSTANCE_ID, SLOT, USAGES)
+      SELECT INSTANCE_ID, pg_backend_pid() % 16, -COUNT(*) FROM old_rows GROUP BY INSTANCE_ID
+      ON CONFLICT (INSTANCE_ID, SLOT) DO UPDATE SET USAGES = counter.USAGES + EXCLUDED.USAGES;
+  END IF;
+  RETURN NULL;
+END;
+$$;
+
+-- A fingerprint is blocked while at least one of its facets blocks its deletion. The facet rows of the fingerprints
+-- touched by the statement are looked up through FINGERPRINT_FACET_RELATION_INDEX to tell whether they were blocked
+-- before and are blocked after it.
+
+CREATE FUNCTION FINGERPRINT_FACET_RELATION_COUNT() RETURNS TRIGGER LANGUAGE plpgsql AS $$
+BEGIN
+  IF TG_OP = 'INSERT' THEN
+    INSERT INTO FINGERPRINT_COUNTER AS counter (INSTANCE_ID, SLOT, FACETS, BLOCKED_FINGERPRINTS)
+      SELECT INSTANCE_ID, pg_backend_pid() % 16, SUM(FACETS),
+        COUNT(*) FILTER (WHERE BLOCKED > 0 AND BLOCKED = CURRENT_BLOCKED)
+      FROM (
+        SELECT FINGERPRINT_ID, INSTANCE_ID, COUNT(*) AS FACETS, COUNT(*) FILTER (WHERE DELETION_BLOCKED) AS BLOCKED,
+          (SELECT COUNT(*) FROM FINGERPRINT_FACET_RELATION facet
+            WHERE facet.FINGERPRINT_ID = new_rows.FINGERPRINT_ID AND facet.INSTANCE_ID = new_rows.INSTANCE_ID
+              AND facet.DELETION_BLOCKED) AS CURRENT_BLOCKED
+        FROM new_rows
+        GROUP BY FINGERPRINT_ID, INSTANCE_ID
+      ) inserted
+      GROUP BY INSTANCE_ID
+      ON CONFLICT (INSTANCE_ID, SLOT) DO UPDATE SET FACETS = counter.FACETS + EXCLUDED.FACETS,
+        BLOCKED_FINGERPRINTS = counter.BLOCKED_FINGERPRINTS + EXCLUDED.BLOCKED_FINGERPRINTS;
+  ELSIF TG_OP = 'DELETE' THEN
+    INSERT INTO FINGERPRINT_COUNTER AS counter (INSTANCE_ID, SLOT, FACETS, BLOCKED_FINGERPRINTS)
+      SELECT INSTANCE_ID, pg_backend_pid() % 16, -SUM(FACETS),
+        -COUNT(*) FILTER (WHERE BLOCKED > 0 AND CURRENT_BLOCKED = 0)
+      FROM (
+        SELECT FINGERPRINT_ID, INSTANCE_ID, COUNT(*) AS FACETS, COUNT(*) FILTER (WHERE DELETION_BLOCKED) AS BLOCKED,
+          (SELECT COUNT(*) FROM FINGERPRINT_FACET_RELATION facet
+            WHERE facet.FINGERPRINT_ID = old_rows.FINGERPRINT_ID AND facet.INSTANCE_ID = old_rows.INSTANCE_ID
+              AND facet.DELETION_BLOCKED) AS CURRENT_BLOCKED
+        FROM old_rows
+        GROUP BY FINGERPRINT_ID, INSTANCE_ID
+      ) deleted
+      GROUP BY INSTANCE_ID
+      ON CONFLICT (INSTANCE_ID, SLOT) DO UPDATE SET FACETS = counter.FACETS + EXCLUDED.FACETS,
+        BLOCKED_FINGERPRINTS = counter.BLOCKED_FINGERPRINTS + EXCLUDED.BLOCKED_FINGERPRINTS;
+  ELSE
+    INSERT INTO FINGERPRINT_COUNTER AS counter (INSTANCE_ID, SLOT, BLOCKED_FINGERPRINTS)
+      SELECT INSTANCE_ID, pg_backend_pid() % 16,
+        COUNT(*) FILTER (WHERE CURRENT_BLOCKED > 0)
+          - COUNT(*) FILTER (WHERE CURRENT_BLOCKED - NEW_BLOCKED + OLD_BLOCKED > 0)
+      FROM (
+        SELECT FINGERPRINT_ID, INSTANCE_ID, SUM(NEW_BLOCKED) AS NEW_BLOCKED, SUM(OLD_BLOCKED) AS OLD_BLOCKED,
+          (SELECT COUNT(*) FROM FINGERPRINT_FACET_RELATION facet
+            WHERE facet.FINGERPRINT_ID = changed.FINGERPRINT_ID AND facet.INSTANCE_ID = changed.INSTANCE_ID
+              AND facet.DELETION_BLOCKED) AS CURRENT_BLOCKED
+        FROM (
+          SELECT FINGERPRINT_ID, INSTANCE_ID, DELETION_BLOCKED::INT AS NEW_BLOCKED, 0 AS OLD_BLOCKED FROM new_rows
+          UNION ALL
+          SELECT FINGERPRINT_ID, INSTANCE_ID, 0 AS NEW_BLOCKED, DELETION_BLOCKED::INT AS OLD_BLOCKED FROM old_rows
+        ) changed
+        GROUP BY FINGERPRINT_ID, INSTANCE_ID
+      ) updated
+      GROUP BY INSTANCE_ID
+      ON CONFLICT (INSTANCE_ID, SLOT) DO UPDATE
+        SET BLOCKED_FINGERPRINTS = counter.BLOCKED_FINGERPRINTS + EXCLUDED.BLOCKED_FINGERPRINTS;
+  END IF;
+  RETURN NULL;
+END;
+$$;
+
+CREATE TRIGGER FINGERPRINT_INSERT_COUNT AFTER INSERT ON FINGERPRINT
+  REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE FINGERPRINT_COUNT();
+CREATE TRIGGER FINGERPRINT_DELETE_COUNT AFTER DELETE ON FINGERPRINT
+  REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE FINGERPRINT_COUNT();
+
+CREATE TRIGGER FINGERPRINT_JOB_BUILD_RELATION_INSERT_COUNT AFTER INSERT ON FINGERPRINT_JOB_BUILD_RELATION
+  REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE FINGERPRINT_JOB_BUILD_RELATION_COUNT();
+CREATE TRIGGER FINGERPRINT_JOB_BUILD_RELATION_DELETE_COUNT AFTER DELETE ON FINGERPRINT_JOB_BUILD_RELATION
+  REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE FINGERPRINT_JOB_BUILD_RELATION_COUNT();
+
+CREATE TRIGGER FINGERPRINT_FACET_RELATION_INSERT_COUNT AFTER INSERT ON FINGERPRINT_FACET_RELATION
+  REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE FINGERPRINT_FACET_RELATION_COUNT();
+CREATE TRIGGER FINGERPRINT_FACET_RELATION_DELETE_COUNT AFTER DELETE ON FINGERPRINT_FACET_RELATION
+  REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE FINGERPRINT_FACET_RELATION_COUNT();
+CREATE TRIGGER FINGERPRINT_FACET_RELATION_UPDATE_COUNT AFTER UPDATE ON FINGERPRINT_FACET_RELATION
+  REFERENCING NEW TABLE AS new_rows OLD TABLE AS old_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE FINGERPRINT_FACET_RELATION_COUNT();
+
+-- The triggers lock the tables against concurrent writes until this migration commits, so that the counts taken
+-- below are exact.
+
+INSERT INTO FINGERPRINT_COUNTER (INSTANCE_ID, SLOT, FINGERPRINTS, USAGES, FACETS, BLOCKED_FINGERPRINTS)
+  SELECT INSTANCE_ID, 0, SUM(FINGERPRINTS), SUM(USAGES), SUM(FACETS), SUM(BLOCKED_FINGERPRINTS)
+  FROM (
+    SELECT INSTANCE_ID, COUNT(*) AS FINGERPRINTS, 0 AS USAGES, 0 AS FACETS, 0 AS BLOCKED_FINGERPRINTS
+    FROM FINGERPRINT GROUP BY INSTANCE_ID
+    UNION ALL
+    SELECT INSTANCE_ID, 0, COUNT(*), 0, 0 FROM FINGERPRINT_JOB_BUILD_RELATION GROUP BY INSTANCE_ID
+    UNION ALL
+    SELECT INSTANCE_ID, 0, 0, COUNT(*), COUNT(DISTINCT FINGERPRINT_ID) FILTER (WHERE DELETION_BLOCKED)
+    FROM FINGERPRINT_FACET_RELATION GROUP BY INSTANCE_ID
+  ) existing
+  GROUP BY INSTANCE_ID;
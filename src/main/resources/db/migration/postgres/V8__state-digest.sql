@@ -0,0 +1,2 @@
+ALTER TABLE FINGERPRINT
+  ADD COLUMN STATE_DIGEST BYTEA;
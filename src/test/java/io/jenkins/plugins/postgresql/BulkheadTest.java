@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import hudson.Util;
+import hudson.model.Fingerprint;
+import hudson.util.Secret;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jenkins.fingerprints.GlobalFingerprintConfiguration;
+import org.jenkinsci.plugins.database.GlobalDatabaseConfiguration;
+import org.jenkinsci.plugins.database.postgresql.PostgreSQLDatabase;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+public class BulkheadTest {
+
+    @Test
+    public void shouldMapBudgetsToLanes() {
+        assertThat(Bulkhead.of(LatencyBudget.SAVE), is(Bulkhead.BUILD));
+        assertThat(Bulkhead.of(LatencyBudget.DELETE), is(Bulkhead.BUILD));
+        assertThat(Bulkhead.of(LatencyBudget.LOAD), is(Bulkhead.INTERACTIVE));
+        assertThat(Bulkhead.of(LatencyBudget.CLEANUP), is(Bulkhead.BACKGROUND));
+    }
+
+    @Test
+    public void shouldTimeOutAsTransientFailure() throws Exception {
+        List<Bulkhead.Permit> permits = new ArrayList<>();
+        try {
+            for (int i = 0; i < Bulkhead.INTERACTIVE.getConcurrency(); i++) {
+                permits.add(Bulkhead.INTERACTIVE.acquire(LatencyBudget.LOAD));
+            }
+            assertThat(Bulkhead.INTERACTIVE.getActive(), is(Bulkhead.INTERACTIVE.getConcurrency()));
+            long timeouts = Bulkhead.INTERACTIVE.getTimeouts();
+
+            SQLException e = assertThrows(SQLException.class, () -> Bulkhead.INTERACTIVE.acquire(LatencyBudget.LOAD));
+            assertThat(CircuitBreaker.isTransientFailure(e), is(true));
+            assertThat(Bulkhead.INTERACTIVE.getTimeouts(), is(timeouts + 1));
+        } finally {
+            permits.forEach(Bulkhead.Permit::close);
+        }
+        assertThat(Bulkhead.INTERACTIVE.getActive(), is(0));
+    }
+
+    @Test
+    public void backgroundShouldYieldToQueuedBuildCalls() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Bulkhead.Permit> permits = new ArrayList<>();
+        try {
+            for (int i = 0; i < Bulkhead.BUILD.getConcurrency(); i++) {
+                permits.add(Bulkhead.BUILD.acquire(LatencyBudget.SAVE));
+            }
+            Future<Bulkhead.Permit> build = executor.submit(() -> Bulkhead.BUILD.acquire(LatencyBudget.SAVE));
+            while (Bulkhead.BUILD.getQueueDepth() == 0) {
+                Thread.sleep(10);
+            }
+            Future<Bulkhead.Permit> background =
+                    executor.submit(() -> Bulkhead.BACKGROUND.acquire(LatencyBudget.CLEANUP));
+
+            Thread.sleep(500);
+            assertThat(background.isDone(), is(false));
+            assertThat(Bulkhead.BACKGROUND.getQueueDepth(), is(1));
+
+            permits.remove(0).close();
+            permits.add(build.get(5, TimeUnit.SECONDS));
+            permits.add(background.get(5, TimeUnit.SECONDS));
+        } finally {
+            permits.forEach(Bulkhead.Permit::close);
+            executor.shutdownNow();
+        }
+        assertThat(Bulkhead.BUILD.getActive(), is(0));
+        assertThat(Bulkhead.BACKGROUND.getActive(), is(0));
+    }
+
+    @Test
+    @WithJenkins
+    public void journalReplayShouldNotTakeBuildPermits(JenkinsRule j) throws Exception {
+        try (PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE)) {
+            postgres.start();
+            PostgreSQLDatabase database = new PostgreSQLDatabase(
+                    postgres.getHost() + ":" + postgres.getMappedPort(5432),
+                    postgres.getDatabaseName(),
+                    postgres.getUsername(),
+                    Secret.fromString(postgres.getPassword()),
+                    null);
+            database.setValidationQuery("SELECT 1");
+            GlobalDatabaseConfiguration.get().setDatabase(database);
+            PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+            GlobalFingerprintConfiguration.get().setStorage(storage);
+            DatabaseSchemaLoader.migrateSchema();
+
+            String id = Util.getDigestOf("journalReplayShouldNotTakeBuildPermits");
+            new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+            FingerprintJournal.get().appendDelete(id);
+
+            List<Bulkhead.Permit> permits = new ArrayList<>();
+            try {
+                for (int i = 0; i < Bulkhead.BUILD.getConcurrency(); i++) {
+                    permits.add(Bulkhead.BUILD.acquire(LatencyBudget.SAVE));
+                }
+                long buildAcquisitions = Bulkhead.BUILD.getAcquisitions();
+                long backgroundAcquisitions = Bulkhead.BACKGROUND.getAcquisitions();
+
+                storage.replayJournal();
+                assertThat(FingerprintJournal.get().isEmpty(), is(true));
+                assertThat(Bulkhead.BUILD.getAcquisitions(), is(buildAcquisitions));
+                assertThat(Bulkhead.BACKGROUND.getAcquisitions(), is(greaterThan(backgroundAcquisitions)));
+            } finally {
+                permits.forEach(Bulkhead.Permit::close);
+            }
+            assertThat(storage.load(id), is(nullValue()));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void shouldOpenAfterConsecutiveFailures() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, Long.MAX_VALUE, Long.MAX_VALUE);
+        for (int i = 0; i < 2; i++) {
+            assertThat(circuitBreaker.allowRequest(), is(true));
+            circuitBreaker.recordFailure();
+        }
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+        assertThat(circuitBreaker.allowRequest(), is(true));
+        circuitBreaker.recordSuccess(0);
+        assertThat(circuitBreaker.allowRequest(), is(true));
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(circuitBreaker.allowRequest(), is(false));
+    }
+
+    @Test
+    public void shouldLetSingleTrialThroughAfterOpenPeriod() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 0, Long.MAX_VALUE);
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+
+        assertThat(circuitBreaker.allowRequest(), is(true));
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat(circuitBreaker.allowRequest(), is(false));
+
+        circuitBreaker.recordSuccess(0);
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(circuitBreaker.allowRequest(), is(true));
+    }
+
+    @Test
+    public void laneTimeoutShouldGiveBackHalfOpenTrial() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 0, Long.MAX_VALUE);
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.allowRequest(), is(true));
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+
+        List<Bulkhead.Permit> permits = new ArrayList<>();
+        try {
+            for (int i = 0; i < Bulkhead.INTERACTIVE.getConcurrency(); i++) {
+                permits.add(Bulkhead.INTERACTIVE.acquire(LatencyBudget.LOAD));
+            }
+            assertThrows(SQLException.class, () -> circuitBreaker.acquire(Bulkhead.INTERACTIVE, LatencyBudget.LOAD));
+        } finally {
+            permits.forEach(Bulkhead.Permit::close);
+        }
+
+        assertThat(circuitBreaker.allowRequest(), is(true));
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        try (Bulkhead.Permit ignored = circuitBreaker.acquire(Bulkhead.INTERACTIVE, LatencyBudget.LOAD)) {
+            circuitBreaker.recordSuccess(0);
+        }
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void slowCallsShouldCountAsFailures() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, Long.MAX_VALUE, 1000);
+        assertThat(circuitBreaker.allowRequest(), is(true));
+        circuitBreaker.recordSuccess(1000);
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void shouldClassifyTransientFailures() {
+        assertThat(CircuitBreaker.isTransientFailure(new SQLException("connection refused", "08001")), is(true));
+        assertThat(CircuitBreaker.isTransientFailure(new SQLException("canceled", "57014")), is(true));
+        assertThat(CircuitBreaker.isTransientFailure(new SQLException("no state")), is(true));
+        assertThat(CircuitBreaker.isTransientFailure(new SQLException("unique violation", "23505")), is(false));
+        assertThat(
+                CircuitBreaker.isTransientFailure(
+                        new SQLException("still migrating", DatabaseSchemaLoader.SCHEMA_NOT_READY)),
+                is(false));
+    }
+}
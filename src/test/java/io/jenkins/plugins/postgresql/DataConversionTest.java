@@ -26,10 +26,12 @@ package io.jenkins.plugins.postgresql;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.core.Is.is;
 
 import com.thoughtworks.xstream.converters.basic.DateConverter;
 import hudson.Util;
+import hudson.model.Fingerprint;
 import java.sql.Timestamp;
 import java.util.Date;
 import java.util.Map;
@@ -76,7 +78,20 @@ public class DataConversionTest {
 
     @Test
     public void testExtractUsageMetadata() {
-        // TODO
+        Map<String, Fingerprint.RangeSet> usageMetadata = DataConversion.extractUsageMetadata(
+                "[{\"job\" : \"" + JOB + "\", \"ranges\" : \"1-3,5\"}, {\"job\" : \"b\", \"ranges\" : \"7\"}]");
+        assertThat(usageMetadata.size(), is(2));
+        assertThat(usageMetadata.get(JOB).listNumbers(), contains(1, 2, 3, 5));
+        assertThat(usageMetadata.get("b").listNumbers(), contains(7));
+        assertThat(DataConversion.extractUsageMetadata(null).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCompressFacetEntry() {
+        String facetEntry = "{\"property\": \"" + "a".repeat(4096) + "\", \"timestamp\": 3}";
+        byte[] compressedFacetEntry = DataConversion.compressFacetEntry(facetEntry);
+        assertThat(compressedFacetEntry.length < facetEntry.length() / 10, is(true));
+        assertThat(DataConversion.decompressFacetEntry(compressedFacetEntry), is(equalTo(facetEntry)));
     }
 
     @Test
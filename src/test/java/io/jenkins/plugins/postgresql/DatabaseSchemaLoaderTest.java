@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import hudson.util.Secret;
+import java.util.concurrent.TimeUnit;
+import jenkins.fingerprints.GlobalFingerprintConfiguration;
+import org.jenkinsci.plugins.database.GlobalDatabaseConfiguration;
+import org.jenkinsci.plugins.database.postgresql.PostgreSQLDatabase;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.jvnet.hudson.test.junit.jupiter.JenkinsSessionExtension;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@Testcontainers
+public class DatabaseSchemaLoaderTest {
+
+    @Container
+    public PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
+
+    @RegisterExtension
+    private final JenkinsSessionExtension sessions = new JenkinsSessionExtension();
+
+    @Test
+    public void shouldStartMigrationOnceSystemConfigurationIsLoaded() throws Throwable {
+        sessions.then(j -> {
+            PostgreSQLDatabase database = new PostgreSQLDatabase(
+                    postgres.getHost() + ":" + postgres.getMappedPort(5432),
+                    postgres.getDatabaseName(),
+                    postgres.getUsername(),
+                    Secret.fromString(postgres.getPassword()),
+                    null);
+            database.setValidationQuery("SELECT 1");
+            GlobalDatabaseConfiguration.get().setDatabase(database);
+            GlobalDatabaseConfiguration.get().save();
+            GlobalFingerprintConfiguration.get().setStorage(PostgreSQLFingerprintStorage.get());
+            GlobalFingerprintConfiguration.get().save();
+        });
+        sessions.then(j -> {
+            // Nothing connects to the database after the restart, so only the initializer can migrate its schema.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (!DatabaseSchemaLoader.isMigrated()) {
+                assertThat("schema migrated within 60 seconds of startup", System.nanoTime() < deadline, is(true));
+                Thread.sleep(100);
+            }
+        });
+    }
+}
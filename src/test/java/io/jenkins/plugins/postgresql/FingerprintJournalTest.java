@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FingerprintJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void shouldRecoverPendingRecords() throws IOException {
+        Path path = directory.resolve("journal.bin");
+        FingerprintJournal journal = new FingerprintJournal(path);
+        journal.appendDelete("a");
+        journal.appendDelete("b");
+        journal.appendDelete("a");
+        journal.sync();
+
+        FingerprintJournal recovered = new FingerprintJournal(path);
+        assertThat(recovered.size(), is(2));
+        assertThat(recovered.get("a").isDelete(), is(true));
+        assertThat(recovered.get("b"), is(notNullValue()));
+    }
+
+    @Test
+    public void shouldTruncateTornTail() throws IOException {
+        Path path = directory.resolve("journal.bin");
+        FingerprintJournal journal = new FingerprintJournal(path);
+        journal.appendDelete("a");
+        journal.sync();
+        long validLength = Files.size(path);
+        Files.write(path, new byte[] {0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        FingerprintJournal recovered = new FingerprintJournal(path);
+        assertThat(recovered.size(), is(1));
+        assertThat(Files.size(path), is(validLength));
+    }
+
+    @Test
+    public void shouldTruncateCorruptLengths() throws IOException {
+        Path path = directory.resolve("journal.bin");
+        FingerprintJournal journal = new FingerprintJournal(path);
+        journal.appendDelete("a");
+        journal.sync();
+        long validLength = Files.size(path);
+
+        for (byte[] length : new byte[][] {{0x7f, -1, -1, -1}, {-1, -1, -1, -1}}) {
+            Files.write(path, length, StandardOpenOption.APPEND);
+            Files.write(path, new byte[Long.BYTES + 16], StandardOpenOption.APPEND);
+
+            FingerprintJournal recovered = new FingerprintJournal(path);
+            assertThat(recovered.size(), is(1));
+            assertThat(Files.size(path), is(validLength));
+        }
+    }
+
+    @Test
+    public void shouldCompactReplayedRecords() throws IOException {
+        Path path = directory.resolve("journal.bin");
+        FingerprintJournal journal = new FingerprintJournal(path);
+        journal.appendDelete("a");
+        journal.appendDelete("b");
+
+        journal.remove(journal.get("a"));
+        journal.compact();
+        assertThat(new FingerprintJournal(path).get("a"), is(nullValue()));
+        assertThat(new FingerprintJournal(path).get("b"), is(notNullValue()));
+
+        journal.discard("b");
+        journal.compact();
+        assertThat(journal.isEmpty(), is(true));
+        assertThat(Files.size(path), is(0L));
+    }
+
+    @Test
+    public void shouldNotRecoverDiscardedRecords() throws IOException {
+        Path path = directory.resolve("journal.bin");
+        FingerprintJournal journal = new FingerprintJournal(path);
+        journal.appendDelete("a");
+        journal.appendDelete("b");
+        journal.discard("a");
+        journal.discard("c");
+
+        FingerprintJournal recovered = new FingerprintJournal(path);
+        assertThat(recovered.get("a"), is(nullValue()));
+        assertThat(recovered.get("b"), is(notNullValue()));
+        assertThat(recovered.size(), is(1));
+    }
+
+    @Test
+    public void shouldRefuseWritesOnceFull() throws IOException {
+        FingerprintJournal journal = new FingerprintJournal(directory.resolve("journal.bin"), 4);
+        journal.appendDelete("a");
+        journal.appendDelete("b");
+        assertThrows(IOException.class, () -> journal.appendDelete("c"));
+        journal.appendDelete("a");
+        assertThat(journal.size(), is(2));
+
+        journal.discard("a");
+        journal.appendDelete("c");
+        assertThat(journal.get("c"), is(notNullValue()));
+    }
+}
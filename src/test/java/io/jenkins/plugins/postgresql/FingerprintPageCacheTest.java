@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FingerprintPageCacheTest {
+
+    private static final int SLOT_BYTES = 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void shouldSurviveReopening() throws IOException {
+        Path path = directory.resolve("page-cache.bin");
+        FingerprintPageCache pageCache = new FingerprintPageCache(path, 64 * SLOT_BYTES, SLOT_BYTES);
+        pageCache.putIfUnchanged("a", "{\"a\":1}", pageCache.generation());
+        pageCache.putIfUnchanged("b", "{\"b\":2}", pageCache.generation());
+        pageCache.invalidate("b");
+
+        FingerprintPageCache reopened = new FingerprintPageCache(path, 64 * SLOT_BYTES, SLOT_BYTES);
+        assertThat(reopened.get("a"), is("{\"a\":1}"));
+        assertThat(reopened.get("b"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() throws IOException {
+        FingerprintPageCache pageCache = new FingerprintPageCache(
+                directory.resolve("page-cache.bin"), FingerprintPageCache.WAYS * SLOT_BYTES, SLOT_BYTES);
+        for (int i = 0; i < FingerprintPageCache.WAYS; i++) {
+            pageCache.putIfUnchanged("id" + i, "{}", pageCache.generation());
+        }
+        assertThat(pageCache.get("id0"), is("{}"));
+
+        pageCache.putIfUnchanged("id" + FingerprintPageCache.WAYS, "{}", pageCache.generation());
+        assertThat(pageCache.get("id0"), is("{}"));
+        assertThat(pageCache.get("id1"), is(nullValue()));
+        assertThat(pageCache.get("id" + FingerprintPageCache.WAYS), is("{}"));
+    }
+
+    @Test
+    public void shouldNotCacheOverConcurrentWrite() throws IOException {
+        FingerprintPageCache pageCache =
+                new FingerprintPageCache(directory.resolve("page-cache.bin"), 64 * SLOT_BYTES, SLOT_BYTES);
+        long generation = pageCache.generation();
+        pageCache.invalidate("a");
+        pageCache.putIfUnchanged("a", "{\"a\":1}", generation);
+        assertThat(pageCache.get("a"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldClearWhenClaimedForOtherDatabases() throws IOException {
+        Path path = directory.resolve("page-cache.bin");
+        FingerprintPageCache pageCache = new FingerprintPageCache(path, 64 * SLOT_BYTES, SLOT_BYTES);
+        pageCache.claim("first");
+        pageCache.putIfUnchanged("a", "{\"a\":1}", pageCache.generation());
+
+        FingerprintPageCache reopened = new FingerprintPageCache(path, 64 * SLOT_BYTES, SLOT_BYTES);
+        reopened.claim("first");
+        assertThat(reopened.get("a"), is("{\"a\":1}"));
+
+        long generation = reopened.generation();
+        reopened.claim("second");
+        assertThat(reopened.get("a"), is(nullValue()));
+        reopened.putIfUnchanged("a", "{\"a\":1}", generation);
+        assertThat(reopened.get("a"), is(nullValue()));
+
+        FingerprintPageCache reopenedAgain = new FingerprintPageCache(path, 64 * SLOT_BYTES, SLOT_BYTES);
+        reopenedAgain.claim("first");
+        assertThat(reopenedAgain.get("a"), is(nullValue()));
+    }
+}
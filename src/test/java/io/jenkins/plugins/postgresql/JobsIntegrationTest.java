@@ -49,6 +49,7 @@ import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
@@ -117,13 +118,100 @@ public class JobsIntegrationTest {
         }
     }
 
+    @Test
+    public void shouldFollowRenamedAndDeletedJobsAndBuilds(JenkinsRule j) throws Exception {
+        setConfiguration(j);
+        FreeStyleProject freeStyleProject = createFreeStyleProject(j);
+        FreeStyleBuild build1 = j.buildAndAssertSuccess(freeStyleProject);
+        j.buildAndAssertSuccess(freeStyleProject);
+        assertThat(countUsages(freeStyleProject.getFullName()), is(2));
+
+        freeStyleProject.renameTo("renamed");
+        FingerprintMaintenance.flush();
+        assertThat(countUsages("renamed"), is(2));
+        try (Connection connection = getConnection();
+                PreparedStatement preparedStatement =
+                        connection.prepareStatement("SELECT ORIGINAL_JOB_NAME FROM FINGERPRINT");
+                ResultSet resultSet = preparedStatement.executeQuery()) {
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(1), is("renamed"));
+        }
+
+        build1.delete();
+        FingerprintMaintenance.flush();
+        assertThat(countUsages("renamed"), is(1));
+
+        freeStyleProject.delete();
+        FingerprintMaintenance.flush();
+        assertThat(countUsages("renamed"), is(0));
+    }
+
+    @Test
+    public void shouldMergeRenamedUsagesIntoExistingOnes(JenkinsRule j) throws Exception {
+        setConfiguration(j);
+        FreeStyleProject freeStyleProject = createFreeStyleProject(j);
+        String oldFullName = freeStyleProject.getFullName();
+        j.buildAndAssertSuccess(freeStyleProject);
+        j.buildAndAssertSuccess(freeStyleProject);
+        try (Connection connection = getConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "INSERT INTO FINGERPRINT_JOB_BUILD_RELATION (FINGERPRINT_ID, INSTANCE_ID, JOB, BUILD_NUMBER)"
+                                + " SELECT FINGERPRINT_ID, INSTANCE_ID, 'renamed', BUILD_NUMBER"
+                                + " FROM FINGERPRINT_JOB_BUILD_RELATION WHERE JOB = ? AND BUILD_NUMBER = 1")) {
+            preparedStatement.setString(1, oldFullName);
+            assertThat(preparedStatement.executeUpdate(), is(1));
+        }
+
+        freeStyleProject.renameTo("renamed");
+        FingerprintMaintenance.flush();
+        assertThat(countUsages("renamed"), is(2));
+        assertThat(countUsages(oldFullName), is(0));
+    }
+
+    @Test
+    public void shouldRenameDescendantsOfFoldersNamedWithSupplementaryCharacters(JenkinsRule j) throws Exception {
+        setConfiguration(j);
+        MockFolder folder = j.createFolder("\uD83D\uDCE6folder");
+        FreeStyleProject freeStyleProject = folder.createProject(FreeStyleProject.class, "job");
+        archiveFingerprint(freeStyleProject);
+        j.buildAndAssertSuccess(freeStyleProject);
+        assertThat(countUsages(freeStyleProject.getFullName()), is(1));
+
+        folder.renameTo("renamed");
+        FingerprintMaintenance.flush();
+        assertThat(countUsages("renamed/job"), is(1));
+        try (Connection connection = getConnection();
+                PreparedStatement preparedStatement =
+                        connection.prepareStatement("SELECT ORIGINAL_JOB_NAME FROM FINGERPRINT");
+                ResultSet resultSet = preparedStatement.executeQuery()) {
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(1), is("renamed/job"));
+        }
+    }
+
+    private int countUsages(String job) throws SQLException {
+        try (Connection connection = getConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "SELECT COUNT(*) FROM FINGERPRINT_JOB_BUILD_RELATION WHERE JOB = ?")) {
+            preparedStatement.setString(1, job);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
     private FreeStyleProject createFreeStyleProject(JenkinsRule j) throws IOException {
         FreeStyleProject freeStyleProject = j.createFreeStyleProject();
+        archiveFingerprint(freeStyleProject);
+        return freeStyleProject;
+    }
+
+    private static void archiveFingerprint(FreeStyleProject freeStyleProject) {
         ArtifactArchiver archiver = new ArtifactArchiver("foo.txt");
         archiver.setFingerprint(true);
         freeStyleProject.getBuildersList().add(new Shell("echo foo > foo.txt"));
         freeStyleProject.getPublishersList().add(archiver);
-        return freeStyleProject;
     }
 
     private Connection getConnection() throws SQLException {
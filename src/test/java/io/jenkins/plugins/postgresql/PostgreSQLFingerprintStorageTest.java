@@ -26,7 +26,9 @@ package io.jenkins.plugins.postgresql;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNot.not;
 
@@ -40,7 +42,14 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import jenkins.fingerprints.FingerprintStorage;
 import jenkins.fingerprints.GlobalFingerprintConfiguration;
 import jenkins.model.FingerprintFacet;
@@ -63,6 +72,14 @@ public class PostgreSQLFingerprintStorageTest {
     public PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
 
     public void setConfiguration() throws IOException {
+        PostgreSQLDatabase database = createDatabase();
+        GlobalDatabaseConfiguration.get().setDatabase(database);
+        PostgreSQLFingerprintStorage postgreSQLFingerprintStorage = PostgreSQLFingerprintStorage.get();
+        GlobalFingerprintConfiguration.get().setStorage(postgreSQLFingerprintStorage);
+        DatabaseSchemaLoader.migrateSchema();
+    }
+
+    private PostgreSQLDatabase createDatabase() {
         PostgreSQLDatabase database = new PostgreSQLDatabase(
                 postgres.getHost() + ":" + postgres.getMappedPort(5432),
                 postgres.getDatabaseName(),
@@ -70,10 +87,7 @@ public class PostgreSQLFingerprintStorageTest {
                 Secret.fromString(postgres.getPassword()),
                 null);
         database.setValidationQuery("SELECT 1");
-        GlobalDatabaseConfiguration.get().setDatabase(database);
-        PostgreSQLFingerprintStorage postgreSQLFingerprintStorage = PostgreSQLFingerprintStorage.get();
-        GlobalFingerprintConfiguration.get().setStorage(postgreSQLFingerprintStorage);
-        DatabaseSchemaLoader.migrateSchema();
+        return database;
     }
 
     @Test
@@ -110,7 +124,7 @@ public class PostgreSQLFingerprintStorageTest {
                 assertThat(resultSet.getString(ColumnName.ORIGINAL_JOB_BUILD_NUMBER), is(nullValue()));
                 assertThat(
                         resultSet.getString(ColumnName.USAGES),
-                        is(equalTo("[{\"job\" : \"a\", \"build_number\" : 3}]")));
+                        is(equalTo("[{\"job\" : \"a\", \"ranges\" : \"3\"}]")));
                 assertThat(
                         resultSet.getString(ColumnName.FACETS),
                         is(equalTo("[{"
@@ -171,6 +185,39 @@ public class PostgreSQLFingerprintStorageTest {
         assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
     }
 
+    @Test
+    public void usagesShouldBeLoadedAsRanges(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        String instanceId = Util.getDigestOf(
+                new ByteArrayInputStream(InstanceIdentity.get().getPublic().getEncoded()));
+        String id = Util.getDigestOf("usagesShouldBeLoadedAsRanges");
+        Fingerprint fingerprintSaved = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        for (int buildNumber : new int[] {1, 2, 3, 5, 8, 9}) {
+            fingerprintSaved.addWithoutSaving("a", buildNumber);
+        }
+        fingerprintSaved.addWithoutSaving("b", 4);
+        fingerprintSaved.save();
+
+        try (Connection connection =
+                        PostgreSQLFingerprintStorage.get().getConnectionSupplier().connection();
+                PreparedStatement preparedStatement =
+                        connection.prepareStatement(Queries.getQuery(Queries.SELECT_FINGERPRINT))) {
+            preparedStatement.setString(1, id);
+            preparedStatement.setString(2, instanceId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            assertThat(resultSet.next(), is(true));
+            assertThat(
+                    DataConversion.extractUsageMetadata(resultSet.getString(ColumnName.USAGES))
+                            .get("a")
+                            .toString(),
+                    is(fingerprintSaved.getUsages().get("a").toString()));
+            assertThat(resultSet.getString(ColumnName.USAGES), Matchers.containsString("\"ranges\" : \"1-3,5,8-9\""));
+        }
+
+        Fingerprint fingerprintLoaded = Fingerprint.load(id);
+        assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+    }
+
     @Test
     public void roundTripWithMultipleFacets(JenkinsRule j) throws IOException {
         String id = Util.getDigestOf("roundTripWithFacets");
@@ -191,6 +238,224 @@ public class PostgreSQLFingerprintStorageTest {
                         fingerprintLoaded.getPersistedFacets().toArray()));
     }
 
+    @Test
+    public void roundTripWithCompressedFacets(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        String id = Util.getDigestOf("roundTripWithCompressedFacets");
+        int facetCompressionThreshold = PostgreSQLFingerprintStorage.facetCompressionThreshold;
+        PostgreSQLFingerprintStorage.facetCompressionThreshold = 256;
+        try {
+            Fingerprint fingerprintSaved = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+            fingerprintSaved.getPersistedFacets().add(new TestFacet(fingerprintSaved, 3, "a"));
+            fingerprintSaved.getPersistedFacets().add(new TestFacet(fingerprintSaved, 33, "b".repeat(1024)));
+            fingerprintSaved.save();
+
+            try (Connection connection =
+                            PostgreSQLFingerprintStorage.get().getConnectionSupplier().connection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "SELECT COUNT(*) AS TOTAL FROM FINGERPRINT_FACET_RELATION "
+                                    + "WHERE FINGERPRINT_ID = ? AND FACET_ENTRY_COMPRESSED IS NOT NULL")) {
+                preparedStatement.setString(1, id);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                assertThat(resultSet.next(), is(true));
+                assertThat(resultSet.getInt(ColumnName.TOTAL), is(1));
+            }
+
+            Fingerprint fingerprintLoaded = PostgreSQLFingerprintStorage.get().load(id);
+            assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+            assertThat(
+                    fingerprintSaved.getPersistedFacets(),
+                    Matchers.containsInAnyOrder(
+                            fingerprintLoaded.getPersistedFacets().toArray()));
+        } finally {
+            PostgreSQLFingerprintStorage.facetCompressionThreshold = facetCompressionThreshold;
+        }
+    }
+
+    @Test
+    public void compressedFacetsShouldBeKeyedByTheirPayloadHash(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        String id = Util.getDigestOf("compressedFacetsShouldBeKeyedByTheirPayloadHash");
+        int facetCompressionThreshold = PostgreSQLFingerprintStorage.facetCompressionThreshold;
+        try {
+            PostgreSQLFingerprintStorage.facetCompressionThreshold = 256;
+            Fingerprint fingerprint = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+            fingerprint.getPersistedFacets().add(new TestFacet(fingerprint, 33, "b".repeat(1024)));
+            fingerprint.save();
+        } finally {
+            PostgreSQLFingerprintStorage.facetCompressionThreshold = facetCompressionThreshold;
+        }
+
+        try (Connection connection =
+                        PostgreSQLFingerprintStorage.get().getConnectionSupplier().connection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "SELECT FACET_ENTRY_HASH = sha256(FACET_ENTRY_COMPRESSED), FACET_ENTRY IS NULL"
+                                + " FROM FINGERPRINT_FACET_RELATION WHERE FINGERPRINT_ID = ?")) {
+            preparedStatement.setString(1, id);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                assertThat(resultSet.next(), is(true));
+                assertThat(resultSet.getBoolean(1), is(true));
+                assertThat(resultSet.getBoolean(2), is(true));
+                assertThat(resultSet.next(), is(false));
+            }
+        }
+    }
+
+    @Test
+    public void roundTripBulk(JenkinsRule j) throws IOException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        List<Fingerprint> fingerprintsSaved = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String id = Util.getDigestOf("roundTripBulk" + i);
+            Fingerprint fingerprint = new Fingerprint(null, "foo" + i + ".jar", Util.fromHexString(id));
+            fingerprint.addWithoutSaving("a", i);
+            fingerprint.addWithoutSaving("b", 1);
+            fingerprint.getPersistedFacets().add(new TestFacet(fingerprint, i, "a"));
+            fingerprintsSaved.add(fingerprint);
+            ids.add(id);
+        }
+
+        storage.saveAll(fingerprintsSaved);
+        for (Fingerprint fingerprintSaved : fingerprintsSaved) {
+            Fingerprint fingerprintLoaded = storage.load(fingerprintSaved.getHashString());
+            assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+            assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+            assertThat(
+                    fingerprintSaved.getPersistedFacets(),
+                    Matchers.containsInAnyOrder(
+                            fingerprintLoaded.getPersistedFacets().toArray()));
+        }
+
+        storage.saveAll(fingerprintsSaved);
+        assertThat(storage.load(ids.get(0)), is(not(Matchers.nullValue())));
+
+        storage.deleteAll(ids);
+        for (String id : ids) {
+            assertThat(storage.load(id), is(Matchers.nullValue()));
+        }
+    }
+
+    @Test
+    public void roundTripWithCopiedUsages(JenkinsRule j) throws IOException {
+        setConfiguration();
+        String id = Util.getDigestOf("roundTripWithCopiedUsages");
+        Fingerprint fingerprintSaved = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        for (int buildNumber = 1; buildNumber <= 20_000; buildNumber++) {
+            fingerprintSaved.addWithoutSaving("a\\b\tc", buildNumber);
+        }
+        fingerprintSaved.addWithoutSaving("d", 3);
+        fingerprintSaved.save();
+
+        Fingerprint fingerprintLoaded = Fingerprint.load(id);
+        assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+        assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+        assertThat(fingerprintLoaded.getRangeSet("a\\b\tc").listNumbers(), Matchers.hasSize(20_000));
+    }
+
+    @Test
+    public void shouldLoadMetadataAndUsagesLazily(JenkinsRule j) throws IOException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        List<String> ids = new ArrayList<>();
+        List<Fingerprint> fingerprintsSaved = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String id = Util.getDigestOf("shouldLoadMetadataAndUsagesLazily" + i);
+            Fingerprint fingerprint = new Fingerprint(null, "foo" + i + ".jar", Util.fromHexString(id));
+            fingerprint.addWithoutSaving("a", 3);
+            fingerprint.addWithoutSaving("a", 4);
+            fingerprint.addWithoutSaving("b", i);
+            fingerprint.getPersistedFacets().add(new TestFacet(fingerprint, i, "a"));
+            fingerprint.save();
+            ids.add(id);
+            fingerprintsSaved.add(fingerprint);
+        }
+        ids.add(Util.getDigestOf("shouldLoadMetadataAndUsagesLazily-missing"));
+
+        Map<String, FingerprintMetadata> metadata = storage.loadMetadata(ids);
+        assertThat(metadata.keySet(), Matchers.contains(ids.get(0), ids.get(1), ids.get(2)));
+        for (Fingerprint fingerprintSaved : fingerprintsSaved) {
+            FingerprintMetadata fingerprintMetadata = metadata.get(fingerprintSaved.getHashString());
+            assertThat(fingerprintMetadata.getFileName(), is(fingerprintSaved.getFileName()));
+            assertThat(fingerprintMetadata.getTimestamp(), is(fingerprintSaved.getTimestamp()));
+            assertThat(fingerprintMetadata.getOriginal(), is(Matchers.nullValue()));
+            assertThat(
+                    fingerprintMetadata.getUsages().get("a").toString(),
+                    is(fingerprintSaved.getRangeSet("a").toString()));
+            assertThat(fingerprintMetadata.getUsages().keySet(), Matchers.containsInAnyOrder("a", "b"));
+            assertThat(
+                    fingerprintMetadata.getFingerprint().toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+        }
+    }
+
+    @Test
+    public void shouldFindFingerprintsByFacet(JenkinsRule j) throws IOException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        List<String> ids = new ArrayList<>();
+        List<String> evenIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String id = Util.getDigestOf("shouldFindFingerprintsByFacet" + i);
+            Fingerprint fingerprint = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+            fingerprint.getPersistedFacets().add(new TestFacet(fingerprint, i, i % 2 == 0 ? "even" : "odd"));
+            fingerprint.save();
+            ids.add(id);
+            if (i % 2 == 0) {
+                evenIds.add(id);
+            }
+        }
+        new Fingerprint(null, "foo.jar", Util.fromHexString(Util.getDigestOf("shouldFindFingerprintsByFacet-none")));
+        Collections.sort(ids);
+        Collections.sort(evenIds);
+        String facetName = TestFacet.class.getName();
+
+        assertThat(storage.findIdsByFacet(facetName, null, null, 10), is(ids));
+        List<String> firstPage = storage.findIdsByFacet(facetName, null, null, 2);
+        assertThat(firstPage, is(ids.subList(0, 2)));
+        assertThat(storage.findIdsByFacet(facetName, null, firstPage.get(1), 2), is(ids.subList(2, 4)));
+        assertThat(
+                storage.streamIdsByFacet(facetName, "{\"property\": \"even\"}").collect(Collectors.toList()),
+                is(evenIds));
+        assertThat(storage.findIdsByFacet(facetName, "{\"property\": \"none\"}", null, 10), is(empty()));
+    }
+
+    @Test
+    public void shouldMaintainCounters(JenkinsRule j) throws IOException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        FingerprintCounters before = storage.getCounters();
+
+        String blockedId = Util.getDigestOf("shouldMaintainCounters-blocked");
+        Fingerprint blocked = new Fingerprint(null, "foo.jar", Util.fromHexString(blockedId));
+        blocked.getPersistedFacets().add(new TestFacet(blocked, 3, "property"));
+        blocked.getPersistedFacets().add(new DeletionBlockingFacet(blocked, 3));
+        blocked.add("a", 1);
+        blocked.add("a", 2);
+        blocked.add("b", 3);
+        Fingerprint fingerprint =
+                new Fingerprint(null, "bar.jar", Util.fromHexString(Util.getDigestOf("shouldMaintainCounters")));
+        fingerprint.add("c", 1);
+
+        FingerprintCounters counters = storage.getCounters();
+        assertThat(counters.getFingerprints() - before.getFingerprints(), is(2L));
+        assertThat(counters.getUsages() - before.getUsages(), is(4L));
+        assertThat(counters.getFacets() - before.getFacets(), is(2L));
+        assertThat(counters.getBlockedFingerprints() - before.getBlockedFingerprints(), is(1L));
+
+        blocked.getPersistedFacets().clear();
+        blocked.save();
+        counters = storage.getCounters();
+        assertThat(counters.getFingerprints() - before.getFingerprints(), is(2L));
+        assertThat(counters.getFacets() - before.getFacets(), is(0L));
+        assertThat(counters.getBlockedFingerprints() - before.getBlockedFingerprints(), is(0L));
+
+        Fingerprint.delete(blockedId);
+        counters = storage.getCounters();
+        assertThat(counters.getFingerprints() - before.getFingerprints(), is(1L));
+        assertThat(counters.getUsages() - before.getUsages(), is(1L));
+    }
+
     @Test
     public void loadingNonExistentFingerprintShouldReturnNull(JenkinsRule j) throws IOException {
         setConfiguration();
@@ -222,6 +487,340 @@ public class PostgreSQLFingerprintStorageTest {
         assertThat(fingerprintStorage.isReady(), is(true));
     }
 
+    @Test
+    public void usageOnlySaveShouldNotRewriteFingerprint(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        String id = Util.getDigestOf("usageOnlySaveShouldNotRewriteFingerprint");
+
+        Fingerprint fingerprint = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        fingerprint.add("a", 3);
+
+        try (Connection connection =
+                        PostgreSQLFingerprintStorage.get().getConnectionSupplier().connection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "UPDATE FINGERPRINT SET FILENAME = 'bar.jar' WHERE FINGERPRINT_ID = ?")) {
+            preparedStatement.setString(1, id);
+            assertThat(preparedStatement.executeUpdate(), is(1));
+        }
+
+        fingerprint.add("a", 4);
+        fingerprint.add("b", 1);
+
+        Fingerprint fingerprintLoaded = Fingerprint.load(id);
+        assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+        assertThat(fingerprintLoaded.getFileName(), is("bar.jar"));
+        assertThat(fingerprintLoaded.getUsages().get("a").includes(3), is(true));
+        assertThat(fingerprintLoaded.getUsages().get("a").includes(4), is(true));
+        assertThat(fingerprintLoaded.getUsages().get("b").includes(1), is(true));
+    }
+
+    @Test
+    public void unchangedSaveShouldNotWriteFingerprint(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        String id = Util.getDigestOf("unchangedSaveShouldNotWriteFingerprint");
+
+        Fingerprint fingerprint = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        fingerprint.add("a", 3);
+
+        try (Connection connection = PostgreSQLFingerprintStorage.get().getConnectionSupplier().connection()) {
+            try (PreparedStatement preparedStatement =
+                    connection.prepareStatement("SELECT STATE_DIGEST FROM FINGERPRINT WHERE FINGERPRINT_ID = ?")) {
+                preparedStatement.setString(1, id);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    assertThat(resultSet.next(), is(true));
+                    assertThat(
+                            resultSet.getBytes(ColumnName.STATE_DIGEST),
+                            is(FingerprintSnapshot.of(fingerprint).getDigest()));
+                }
+            }
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "UPDATE FINGERPRINT SET FILENAME = 'bar.jar' WHERE FINGERPRINT_ID = ?")) {
+                preparedStatement.setString(1, id);
+                assertThat(preparedStatement.executeUpdate(), is(1));
+            }
+        }
+
+        fingerprint.add("a", 3);
+        fingerprint.save();
+
+        Fingerprint fingerprintLoaded = Fingerprint.load(id);
+        assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+        assertThat(fingerprintLoaded.getFileName(), is("bar.jar"));
+        assertThat(fingerprintLoaded.getUsages().get("a").includes(3), is(true));
+    }
+
+    @Test
+    public void testAddUsage(JenkinsRule j) throws IOException {
+        setConfiguration();
+        String id = Util.getDigestOf("testAddUsage");
+        Fingerprint fingerprintSaved = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+
+        PostgreSQLFingerprintStorage.get().addUsage(id, "a", 3);
+        PostgreSQLFingerprintStorage.get().addUsage(id, "a", 3);
+        fingerprintSaved.addWithoutSaving("a", 3);
+
+        Fingerprint fingerprintLoaded = Fingerprint.load(id);
+        assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+        assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+    }
+
+    @Test
+    public void roundTripAsync(JenkinsRule j) throws Exception {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        String id = Util.getDigestOf("roundTripAsync");
+
+        Fingerprint fingerprintSaved = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        fingerprintSaved.addWithoutSaving("a", 3);
+        fingerprintSaved.getPersistedFacets().add(new TestFacet(fingerprintSaved, 3, "a"));
+        storage.saveAsync(fingerprintSaved).get();
+
+        Fingerprint fingerprintLoaded = storage.loadAsync(id).get();
+        assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+        assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+
+        storage.deleteAsync(id).get();
+        assertThat(storage.loadAsync(id).get(), is(Matchers.nullValue()));
+    }
+
+    @Test
+    public void readsShouldUseReadReplica(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        ReadReplica readReplica = new ReadReplica(createDatabase());
+        readReplica.setReadYourWritesWindow(0);
+        storage.setReadReplica(readReplica);
+        try {
+            try (Connection connection = readReplica.getConnectionSupplier().connection()) {
+                assertThat(connection.isReadOnly(), is(true));
+            }
+
+            String id = Util.getDigestOf("readsShouldUseReadReplica");
+            Fingerprint fingerprintSaved = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+            fingerprintSaved.add("a", 3);
+            assertThat(readReplica.isRecentlyWritten(id), is(false));
+
+            Fingerprint fingerprintLoaded = Fingerprint.load(id);
+            assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+            assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+            assertThat(storage.isReady(), is(true));
+
+            readReplica.setReadYourWritesWindow(60);
+            fingerprintSaved.add("a", 4);
+            assertThat(readReplica.isRecentlyWritten(id), is(true));
+            assertThat(readReplica.isRecentlyWritten(null), is(true));
+            assertThat(readReplica.isAnyRecentlyWritten(List.of(Util.getDigestOf("other"), id)), is(true));
+            assertThat(readReplica.isAnyRecentlyWritten(List.of(Util.getDigestOf("other"))), is(false));
+
+            // Once writes within the window are evicted, every fingerprint may have been written recently.
+            for (int i = 0; i < ReadReplica.MAX_RECENT_WRITES; i++) {
+                readReplica.recordWrite(Util.getDigestOf("evicting" + i));
+            }
+            assertThat(readReplica.isRecentlyWritten(id), is(true));
+            assertThat(readReplica.isAnyRecentlyWritten(List.of(Util.getDigestOf("other"))), is(true));
+        } finally {
+            storage.setReadReplica(null);
+        }
+    }
+
+    @Test
+    public void concurrentLoadsShouldReturnSameFingerprint(JenkinsRule j) throws Exception {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        String id = Util.getDigestOf("concurrentLoadsShouldReturnSameFingerprint");
+        Fingerprint fingerprintSaved = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        fingerprintSaved.add("a", 3);
+
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try (Connection connection = storage.getConnectionSupplier().connection();
+                Connection monitoringConnection = storage.getConnectionSupplier().connection()) {
+            // Hold the loads in PostgreSQL, so that they all overlap.
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement =
+                    connection.prepareStatement("LOCK TABLE FINGERPRINT IN ACCESS EXCLUSIVE MODE")) {
+                preparedStatement.execute();
+            }
+            List<Future<Fingerprint>> loads = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                loads.add(executorService.submit(() -> {
+                    start.await();
+                    return storage.load(id);
+                }));
+            }
+            start.countDown();
+            while (countLockWaits(monitoringConnection) == 0) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(500);
+            assertThat(countLockWaits(monitoringConnection), is(1));
+            connection.commit();
+
+            Fingerprint fingerprintLoaded = loads.get(0).get();
+            assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
+            assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+            for (Future<Fingerprint> load : loads) {
+                assertThat(load.get(), is(sameInstance(fingerprintLoaded)));
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the number of queries waiting on a lock, each of them a round trip of a load.
+     */
+    private static int countLockWaits(Connection connection) throws SQLException {
+        String query = "SELECT COUNT(*) FROM pg_stat_activity"
+                + " WHERE wait_event_type = 'Lock' AND datname = current_database()";
+        try (PreparedStatement preparedStatement = connection.prepareStatement(query);
+                ResultSet resultSet = preparedStatement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    @Test
+    public void lockWaitShouldBeCappedByLatencyBudget(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        String id = Util.getDigestOf("lockWaitShouldBeCappedByLatencyBudget");
+        new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        long lockTimeouts = LatencyBudget.DELETE.getLockTimeouts();
+
+        try (Connection connection = storage.getConnectionSupplier().connection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement =
+                    connection.prepareStatement("SELECT 1 FROM FINGERPRINT WHERE FINGERPRINT_ID = ? FOR UPDATE")) {
+                preparedStatement.setString(1, id);
+                preparedStatement.executeQuery().close();
+            }
+
+            long start = System.nanoTime();
+            storage.delete(id);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            assertThat(elapsedMillis < LatencyBudget.DELETE.getBudgetMillis(), is(true));
+            assertThat(LatencyBudget.DELETE.getLockTimeouts(), is(lockTimeouts + 1));
+            assertThat(storage.load(id), is(Matchers.nullValue()));
+            connection.rollback();
+        }
+    }
+
+    @Test
+    public void synchronousCommitShouldOnlyApplyToFingerprintTransactions(JenkinsRule j)
+            throws IOException, SQLException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        storage.setSynchronousCommit(SynchronousCommit.OFF);
+        String id = Util.getDigestOf("synchronousCommitShouldOnlyApplyToFingerprintTransactions");
+        Fingerprint fingerprintSaved = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        fingerprintSaved.add("a", 3);
+        assertThat(storage.load(id).toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
+
+        try (Connection connection = storage.getConnectionSupplier().connection()) {
+            connection.setAutoCommit(false);
+            LatencyBudget.SAVE.begin(connection, storage.getSynchronousCommit());
+            assertThat(showSynchronousCommit(connection), is("off"));
+            connection.commit();
+            assertThat(showSynchronousCommit(connection), is("on"));
+
+            LatencyBudget.SAVE.begin(connection, SynchronousCommit.ON);
+            assertThat(showSynchronousCommit(connection), is("on"));
+            connection.commit();
+        } finally {
+            storage.setSynchronousCommit(null);
+        }
+    }
+
+    private static String showSynchronousCommit(Connection connection) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement("SHOW synchronous_commit");
+                ResultSet resultSet = preparedStatement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+
+    @Test
+    public void shouldPurgeExpiredFingerprints(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        String expiredId = Util.getDigestOf("shouldPurgeExpiredFingerprints-expired");
+        String blockedId = Util.getDigestOf("shouldPurgeExpiredFingerprints-blocked");
+        String recentId = Util.getDigestOf("shouldPurgeExpiredFingerprints-recent");
+
+        Fingerprint expired = new Fingerprint(null, "foo.jar", Util.fromHexString(expiredId));
+        expired.add("a", 3);
+        Fingerprint blocked = new Fingerprint(null, "foo.jar", Util.fromHexString(blockedId));
+        blocked.getPersistedFacets().add(new DeletionBlockingFacet(blocked, 3));
+        blocked.save();
+        new Fingerprint(null, "foo.jar", Util.fromHexString(recentId));
+
+        try (Connection connection = storage.getConnectionSupplier().connection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "UPDATE FINGERPRINT SET TIMESTAMP = TIMESTAMP - INTERVAL '31 days' "
+                                + "WHERE FINGERPRINT_ID IN (?, ?)")) {
+            preparedStatement.setString(1, expiredId);
+            preparedStatement.setString(2, blockedId);
+            assertThat(preparedStatement.executeUpdate(), is(2));
+        }
+
+        assertThat(storage.purgeExpiredFingerprints(), is(0));
+        storage.setRetentionDays(30);
+        assertThat(storage.purgeExpiredFingerprints(), is(1));
+
+        assertThat(storage.load(expiredId), is(Matchers.nullValue()));
+        assertThat(storage.load(blockedId), is(not(Matchers.nullValue())));
+        assertThat(storage.load(recentId), is(not(Matchers.nullValue())));
+    }
+
+    @Test
+    public void shouldCollectStorageHealth(JenkinsRule j) throws IOException, SQLException {
+        setConfiguration();
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        String id = Util.getDigestOf("shouldCollectStorageHealth");
+        Fingerprint fingerprint = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+        for (int i = 1; i <= 10; i++) {
+            fingerprint.add("a", i);
+        }
+        new Fingerprint(null, "foo.jar", Util.fromHexString(Util.getDigestOf("shouldCollectStorageHealth-cold")))
+                .add("a", 1);
+
+        // A hotter fingerprint of another instance sharing the database.
+        String otherId = Util.getDigestOf("shouldCollectStorageHealth-other");
+        try (Connection connection = storage.getConnectionSupplier().connection()) {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO FINGERPRINT (FINGERPRINT_ID, INSTANCE_ID, TIMESTAMP, FILENAME)"
+                            + " VALUES (?, 'other', NOW(), 'foo.jar')")) {
+                preparedStatement.setString(1, otherId);
+                preparedStatement.executeUpdate();
+            }
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO FINGERPRINT_JOB_BUILD_RELATION (FINGERPRINT_ID, INSTANCE_ID, JOB, BUILD_NUMBER)"
+                            + " SELECT ?, 'other', 'a', i FROM generate_series(1, 100) i")) {
+                preparedStatement.setString(1, otherId);
+                preparedStatement.executeUpdate();
+            }
+        }
+
+        try (Connection connection = storage.getConnectionSupplier().connection();
+                PreparedStatement preparedStatement =
+                        connection.prepareStatement("ANALYZE FINGERPRINT_JOB_BUILD_RELATION")) {
+            preparedStatement.execute();
+        }
+
+        StorageHealth health = storage.getHealth();
+        assertThat(health.getError(), is(nullValue()));
+        assertThat(health.getTables().size(), is(3));
+        assertThat(health.getIndexes().isEmpty(), is(false));
+        assertThat(health.getHotUsageFingerprints().get(0).getId(), is(id));
+        for (StorageHealth.HotFingerprint hotFingerprint : health.getHotUsageFingerprints()) {
+            assertThat(hotFingerprint.getId(), is(not(otherId)));
+        }
+        assertThat(storage.getHealth(), is(health));
+    }
+
     public static final class TestFacet extends FingerprintFacet {
         final String property;
 
@@ -249,4 +848,16 @@ public class PostgreSQLFingerprintStorageTest {
             return this.toString().equals(testFacet.toString());
         }
     }
+
+    public static final class DeletionBlockingFacet extends FingerprintFacet {
+
+        public DeletionBlockingFacet(Fingerprint fingerprint, long timestamp) {
+            super(fingerprint, timestamp);
+        }
+
+        @Override
+        public boolean isFingerprintDeletionBlocked() {
+            return true;
+        }
+    }
 }
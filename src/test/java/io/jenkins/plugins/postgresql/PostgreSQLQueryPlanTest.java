@@ -0,0 +1,460 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+import hudson.Util;
+import hudson.util.Secret;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import jenkins.fingerprints.GlobalFingerprintConfiguration;
+import org.jenkinsci.plugins.database.GlobalDatabaseConfiguration;
+import org.jenkinsci.plugins.database.postgresql.PostgreSQLDatabase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+/**
+ * Guards the plans PostgreSQL chooses for the queries of {@link Queries} against a skewed dataset: a few fingerprints
+ * used by thousands of builds among many used by a handful, and most usages in a few jobs. A query which stops using
+ * an index, scans a relation table sequentially, or is estimated to produce far more rows than it should fails here
+ * rather than in production.
+ */
+@WithJenkins
+@Testcontainers
+public class PostgreSQLQueryPlanTest {
+
+    private static final String INSTANCE_ID = "185d72052231445badce445130a11414";
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String FINGERPRINT_JOB_BUILD_RELATION = "fingerprint_job_build_relation";
+    private static final String FINGERPRINT_FACET_RELATION = "fingerprint_facet_relation";
+
+    private static final int FINGERPRINTS = 20000;
+    private static final int HOT_FINGERPRINTS = 10;
+    private static final int HOT_FINGERPRINT_USAGES = 2000;
+    private static final int JOBS = 1000;
+    private static final int JOBS_PER_FOLDER = 5;
+
+    private static final String HOT_ID = Util.getDigestOf("fingerprint0");
+    private static final String COLD_ID = Util.getDigestOf("fingerprint12345");
+    private static final String NEW_ID = Util.getDigestOf("new");
+    private static final String FOLDER = "folder-84";
+    private static final String JOB = FOLDER + "/job-420";
+    private static final Timestamp TIMESTAMP = Timestamp.valueOf("2020-01-01 00:00:00");
+
+    /**
+     * Maximum number of rows any node of a plan looking up a few cold fingerprints or jobs may be estimated to produce,
+     * far below the size of the relation tables.
+     */
+    private static final long LOOKUP_ROWS = 5000;
+
+    private static final long UNBOUNDED = Long.MAX_VALUE;
+
+    /**
+     * Queries which cannot be explained, since {@code COPY} has no plan.
+     */
+    private static final Set<String> NOT_EXPLAINABLE =
+            Collections.singleton(Queries.COPY_FINGERPRINT_JOB_BUILD_RELATIONS);
+
+    private final Set<String> explained = new HashSet<>();
+
+    @Container
+    public PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
+
+    public void setConfiguration() throws IOException {
+        PostgreSQLDatabase database = new PostgreSQLDatabase(
+                postgres.getHost() + ":" + postgres.getMappedPort(5432),
+                postgres.getDatabaseName(),
+                postgres.getUsername(),
+                Secret.fromString(postgres.getPassword()),
+                null);
+        database.setValidationQuery("SELECT 1");
+        GlobalDatabaseConfiguration.get().setDatabase(database);
+        PostgreSQLFingerprintStorage postgreSQLFingerprintStorage = PostgreSQLFingerprintStorage.get();
+        GlobalFingerprintConfiguration.get().setStorage(postgreSQLFingerprintStorage);
+        DatabaseSchemaLoader.migrateSchema();
+    }
+
+    private Connection getConnection() throws SQLException {
+        return PostgreSQLFingerprintStorage.get().getConnectionSupplier().connection();
+    }
+
+    @Test
+    public void everyQueryShouldKeepItsPlan(JenkinsRule rule) throws SQLException, IOException {
+        setConfiguration();
+        try (Connection connection = getConnection()) {
+            seed(connection);
+
+            List<String> coldIds = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                coldIds.add(Util.getDigestOf("fingerprint" + (HOT_FINGERPRINTS + 1000 * i + 7)));
+            }
+            Array ids = connection.createArrayOf("varchar", coldIds.toArray());
+            Array newIds = connection.createArrayOf("varchar", new Object[] {NEW_ID});
+            Array jobs = connection.createArrayOf("varchar", new Object[] {JOB});
+            Array timestamps = connection.createArrayOf("timestamp", new Object[] {TIMESTAMP});
+            Array buildNumbers = connection.createArrayOf("int4", new Object[] {1});
+            byte[] hash = new byte[32];
+
+            assertPlan(
+                    connection,
+                    Queries.INSERT_FINGERPRINT,
+                    parameters(NEW_ID, INSTANCE_ID, TIMESTAMP, "foo.jar", JOB, 1, hash),
+                    UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT_STATE_DIGEST,
+                    parameters(COLD_ID, INSTANCE_ID),
+                    LOOKUP_ROWS,
+                    FINGERPRINT);
+            assertPlan(
+                    connection,
+                    Queries.UPDATE_FINGERPRINT_STATE_DIGEST,
+                    parameters(hash, COLD_ID, INSTANCE_ID),
+                    LOOKUP_ROWS,
+                    FINGERPRINT);
+            assertPlan(
+                    connection,
+                    Queries.CLEAR_FINGERPRINT_STATE_DIGESTS,
+                    parameters(INSTANCE_ID, ids),
+                    LOOKUP_ROWS,
+                    FINGERPRINT);
+            assertPlan(
+                    connection,
+                    Queries.INSERT_FINGERPRINT_JOB_BUILD_RELATION,
+                    parameters(NEW_ID, INSTANCE_ID, JOB, 1),
+                    UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.INSERT_FINGERPRINT_JOB_BUILD_RELATION_IF_ABSENT,
+                    parameters(NEW_ID, INSTANCE_ID, JOB, 1),
+                    UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.INSERT_FINGERPRINT_FACET_RELATION,
+                    parameters(NEW_ID, INSTANCE_ID, "TestFacet", "{\"foo\": \"bar\"}", true),
+                    UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.INSERT_FINGERPRINT_FACET_RELATION_COMPRESSED,
+                    parameters(NEW_ID, INSTANCE_ID, "TestFacet", hash, hash, false),
+                    UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.INSERT_FINGERPRINTS,
+                    parameters(INSTANCE_ID, newIds, timestamps, newIds, jobs, buildNumbers, newIds),
+                    UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.INSERT_FINGERPRINT_JOB_BUILD_RELATIONS,
+                    parameters(INSTANCE_ID, newIds, jobs, buildNumbers),
+                    UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.INSERT_FINGERPRINT_FACET_RELATIONS,
+                    parameters(
+                            INSTANCE_ID,
+                            newIds,
+                            connection.createArrayOf("varchar", new Object[] {"TestFacet"}),
+                            connection.createArrayOf("text", new Object[] {"{\"foo\": \"bar\"}"}),
+                            connection.createArrayOf("bool", new Object[] {false})),
+                    UNBOUNDED);
+
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT,
+                    parameters(COLD_ID, INSTANCE_ID),
+                    LOOKUP_ROWS,
+                    FINGERPRINT,
+                    FINGERPRINT_JOB_BUILD_RELATION,
+                    FINGERPRINT_FACET_RELATION);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT,
+                    parameters(HOT_ID, INSTANCE_ID),
+                    UNBOUNDED,
+                    FINGERPRINT,
+                    FINGERPRINT_JOB_BUILD_RELATION,
+                    FINGERPRINT_FACET_RELATION);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINTS_METADATA,
+                    parameters(INSTANCE_ID, ids),
+                    LOOKUP_ROWS,
+                    FINGERPRINT);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINTS_USAGES,
+                    parameters(INSTANCE_ID, ids),
+                    LOOKUP_ROWS,
+                    FINGERPRINT_JOB_BUILD_RELATION);
+            // The index scan is estimated to produce every following id, of which the LIMIT only reads a page.
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT_IDS,
+                    parameters(INSTANCE_ID, COLD_ID, 100),
+                    UNBOUNDED,
+                    FINGERPRINT);
+            // Most facets are of the same class, of which the LIMIT only reads a page.
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT_IDS_BY_FACET,
+                    parameters(INSTANCE_ID, "TestFacet", COLD_ID, 100),
+                    UNBOUNDED,
+                    FINGERPRINT_FACET_RELATION);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT_IDS_BY_FACET_ENTRY,
+                    parameters(INSTANCE_ID, "TestFacet", "{\"build\": 12345}", "", 100),
+                    LOOKUP_ROWS,
+                    FINGERPRINT_FACET_RELATION);
+            assertPlan(connection, Queries.SELECT_FINGERPRINT_EXISTS_FOR_INSTANCE, parameters(INSTANCE_ID), UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT_COUNT,
+                    parameters(COLD_ID, INSTANCE_ID),
+                    LOOKUP_ROWS,
+                    FINGERPRINT);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT_JOB_BUILD_RELATION_COUNT,
+                    parameters(COLD_ID, INSTANCE_ID),
+                    LOOKUP_ROWS,
+                    FINGERPRINT_JOB_BUILD_RELATION);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_FINGERPRINT_FACET_RELATION_COUNT,
+                    parameters(COLD_ID, INSTANCE_ID),
+                    LOOKUP_ROWS,
+                    FINGERPRINT_FACET_RELATION);
+            assertPlan(connection, Queries.SELECT_FINGERPRINT_COUNTERS, parameters(INSTANCE_ID), LOOKUP_ROWS);
+
+            assertPlan(
+                    connection, Queries.DELETE_FINGERPRINT, parameters(COLD_ID, INSTANCE_ID), LOOKUP_ROWS, FINGERPRINT);
+            assertPlan(connection, Queries.DELETE_FINGERPRINTS, parameters(INSTANCE_ID, ids), LOOKUP_ROWS, FINGERPRINT);
+            assertPlan(
+                    connection,
+                    Queries.DELETE_EXPIRED_FINGERPRINTS,
+                    parameters(INSTANCE_ID, new Timestamp(TIMESTAMP.getTime() + 2000 * 60 * 1000L), 100),
+                    UNBOUNDED);
+
+            assertPlan(
+                    connection,
+                    Queries.RENAME_JOB_USAGES,
+                    parameters(
+                            INSTANCE_ID,
+                            FOLDER,
+                            FingerprintMaintenance.descendantsPattern(FOLDER),
+                            "renamed",
+                            FOLDER.length() + 1),
+                    LOOKUP_ROWS,
+                    FINGERPRINT_JOB_BUILD_RELATION);
+            assertPlan(
+                    connection,
+                    Queries.RENAME_ORIGINAL_JOB,
+                    parameters(
+                            "renamed",
+                            FOLDER.length() + 1,
+                            INSTANCE_ID,
+                            FOLDER,
+                            FingerprintMaintenance.descendantsPattern(FOLDER)),
+                    LOOKUP_ROWS,
+                    FINGERPRINT);
+            assertPlan(
+                    connection,
+                    Queries.DELETE_JOB_USAGES,
+                    parameters(INSTANCE_ID, FOLDER, FingerprintMaintenance.descendantsPattern(FOLDER)),
+                    LOOKUP_ROWS,
+                    FINGERPRINT_JOB_BUILD_RELATION);
+            assertPlan(
+                    connection,
+                    Queries.DELETE_BUILD_USAGES,
+                    parameters(INSTANCE_ID, JOB, connection.createArrayOf("int4", new Object[] {1, 2})),
+                    LOOKUP_ROWS,
+                    FINGERPRINT_JOB_BUILD_RELATION);
+
+            assertPlan(connection, Queries.SET_LATENCY_BUDGET, parameters("5000", "2500", null), UNBOUNDED);
+            assertPlan(connection, Queries.CHECK_FINGERPRINT_TABLE_EXISTS, parameters(), UNBOUNDED);
+            assertPlan(connection, Queries.CHECK_FINGERPRINT_JOB_BUILD_RELATION_TABLE_EXISTS, parameters(), UNBOUNDED);
+            assertPlan(connection, Queries.CHECK_FINGERPRINT_FACET_RELATION_TABLE_EXISTS, parameters(), UNBOUNDED);
+            assertPlan(connection, Queries.SELECT_TABLE_STATISTICS, parameters(), UNBOUNDED);
+            assertPlan(connection, Queries.SELECT_INDEX_STATISTICS, parameters(), UNBOUNDED);
+            assertPlan(
+                    connection,
+                    Queries.SELECT_HOT_FINGERPRINTS,
+                    parameters(FINGERPRINT_JOB_BUILD_RELATION, INSTANCE_ID, 10),
+                    UNBOUNDED);
+        }
+
+        Set<String> unexplained = queryNames();
+        unexplained.removeAll(explained);
+        unexplained.removeAll(NOT_EXPLAINABLE);
+        assertThat("Queries without an expected plan", unexplained, is(empty()));
+    }
+
+    /**
+     * Seeds {@link #FINGERPRINTS} fingerprints, the first {@link #HOT_FINGERPRINTS} of which are used by
+     * {@link #HOT_FINGERPRINT_USAGES} builds each and the others by one to five, with a facet on every fourth
+     * fingerprint, one in five of which is of another class and one in 25 of which blocks its deletion. Timestamps
+     * increase with the insertion order, like those of fingerprints recorded over time.
+     */
+    private static void seed(Connection connection) throws SQLException {
+        connection.setAutoCommit(true);
+        String job = "'folder-' || (i % " + JOBS + " / " + JOBS_PER_FOLDER + ") || '/job-' || (i % " + JOBS + ")";
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "INSERT INTO FINGERPRINT (FINGERPRINT_ID, INSTANCE_ID, TIMESTAMP, FILENAME, "
+                        + "ORIGINAL_JOB_NAME, ORIGINAL_JOB_BUILD_NUMBER) "
+                        + "SELECT md5('fingerprint' || i), ?, ? + i * INTERVAL '1 minute', 'artifact-' || i || '.jar', "
+                        + job + ", 1 "
+                        + "FROM generate_series(0, ?) i")) {
+            preparedStatement.setString(1, INSTANCE_ID);
+            preparedStatement.setTimestamp(2, TIMESTAMP);
+            preparedStatement.setInt(3, FINGERPRINTS - 1);
+            preparedStatement.executeUpdate();
+        }
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "INSERT INTO FINGERPRINT_JOB_BUILD_RELATION (FINGERPRINT_ID, INSTANCE_ID, JOB, BUILD_NUMBER) "
+                        + "SELECT md5('fingerprint' || i), ?, " + job + ", build_number "
+                        + "FROM generate_series(0, ?) i, "
+                        + "generate_series(1, CASE WHEN i < ? THEN ? ELSE 1 + i % 5 END) build_number")) {
+            preparedStatement.setString(1, INSTANCE_ID);
+            preparedStatement.setInt(2, FINGERPRINTS - 1);
+            preparedStatement.setInt(3, HOT_FINGERPRINTS);
+            preparedStatement.setInt(4, HOT_FINGERPRINT_USAGES);
+            preparedStatement.executeUpdate();
+        }
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "INSERT INTO FINGERPRINT_FACET_RELATION "
+                        + "(FINGERPRINT_ID, INSTANCE_ID, FACET_NAME, FACET_ENTRY_HASH, FACET_ENTRY, DELETION_BLOCKED) "
+                        + "SELECT md5('fingerprint' || i), ?, "
+                        + "CASE WHEN i % 20 = 0 THEN 'DockerFacet' ELSE 'TestFacet' END, "
+                        + "sha256(convert_to(jsonb_build_object('build', i)::text, 'UTF8')), "
+                        + "jsonb_build_object('build', i), i % 100 = 0 "
+                        + "FROM generate_series(0, ?, 4) i")) {
+            preparedStatement.setString(1, INSTANCE_ID);
+            preparedStatement.setInt(2, FINGERPRINTS - 1);
+            preparedStatement.executeUpdate();
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("VACUUM ANALYZE");
+        }
+    }
+
+    private static Object[] parameters(Object... parameters) {
+        return parameters;
+    }
+
+    /**
+     * Explains the given query and asserts that its plan scans no relation table sequentially, that no node is
+     * estimated to produce more than {@code maxRows} rows, and that each of {@code indexedRelations} is read through
+     * one of its indexes.
+     */
+    private void assertPlan(
+            Connection connection, String query, Object[] parameters, long maxRows, String... indexedRelations)
+            throws SQLException {
+        explained.add(query);
+        JSONObject plan;
+        try (PreparedStatement preparedStatement =
+                connection.prepareStatement("EXPLAIN (FORMAT JSON) " + Queries.getQuery(query))) {
+            for (int i = 0; i < parameters.length; i++) {
+                if (parameters[i] == null) {
+                    preparedStatement.setNull(i + 1, Types.VARCHAR);
+                } else {
+                    preparedStatement.setObject(i + 1, parameters[i]);
+                }
+            }
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                assertThat(query, resultSet.next(), is(true));
+                plan = new JSONArray(resultSet.getString(1)).getJSONObject(0).getJSONObject("Plan");
+            }
+        }
+
+        List<JSONObject> nodes = new ArrayList<>();
+        collectNodes(plan, nodes);
+        Set<String> indexed = new TreeSet<>();
+        for (JSONObject node : nodes) {
+            String nodeType = node.getString("Node Type");
+            String relation = node.optString("Relation Name", null);
+            String description = query + ": " + nodeType + (relation != null ? " on " + relation : "");
+            assertThat(
+                    description,
+                    nodeType.equals("Seq Scan")
+                            && (FINGERPRINT_JOB_BUILD_RELATION.equals(relation)
+                                    || FINGERPRINT_FACET_RELATION.equals(relation)),
+                    is(false));
+            assertThat(description, node.getLong("Plan Rows"), is(lessThanOrEqualTo(maxRows)));
+            if (relation != null
+                    && (nodeType.equals("Index Scan")
+                            || nodeType.equals("Index Only Scan")
+                            || nodeType.equals("Bitmap Heap Scan"))) {
+                indexed.add(relation);
+            }
+        }
+        for (String relation : indexedRelations) {
+            assertThat(query + ": index scan on " + relation + " in " + plan, indexed.contains(relation), is(true));
+        }
+    }
+
+    private static void collectNodes(JSONObject node, List<JSONObject> nodes) {
+        nodes.add(node);
+        JSONArray children = node.optJSONArray("Plans");
+        if (children != null) {
+            for (int i = 0; i < children.length(); i++) {
+                collectNodes(children.getJSONObject(i), nodes);
+            }
+        }
+    }
+
+    private static Set<String> queryNames() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream inputStream = Queries.class.getResourceAsStream("Queries.properties")) {
+            properties.load(inputStream);
+        }
+        return new TreeSet<>(properties.stringPropertyNames());
+    }
+}
@@ -31,11 +31,15 @@ import static org.hamcrest.core.Is.is;
 import hudson.Util;
 import hudson.util.Secret;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Date;
 import jenkins.fingerprints.GlobalFingerprintConfiguration;
 import org.jenkinsci.plugins.database.GlobalDatabaseConfiguration;
@@ -131,6 +135,7 @@ public class PostgreSQLQueryTest {
                 preparedStatement.setString(4, FINGERPRINT_FILENAME);
                 preparedStatement.setString(5, JOB_NAME);
                 preparedStatement.setInt(6, BUILD_NUMBER);
+                preparedStatement.setNull(7, Types.BINARY);
                 preparedStatement.executeUpdate();
             }
 
@@ -163,6 +168,7 @@ public class PostgreSQLQueryTest {
                 preparedStatement.setString(4, FINGERPRINT_FILENAME);
                 preparedStatement.setString(5, JOB_NAME);
                 preparedStatement.setInt(6, BUILD_NUMBER);
+                preparedStatement.setNull(7, Types.BINARY);
                 preparedStatement.executeUpdate();
             }
 
@@ -189,7 +195,7 @@ public class PostgreSQLQueryTest {
                 assertThat(
                         resultSet.getString(ColumnName.USAGES),
                         is(equalTo(
-                                "[{\"job\" : \"" + JOB_NAME + "\", " + "\"build_number\" : " + BUILD_NUMBER + "}]")));
+                                "[{\"job\" : \"" + JOB_NAME + "\", " + "\"ranges\" : \"" + BUILD_NUMBER + "\"}]")));
                 assertThat(resultSet.getString(ColumnName.FACETS), is(nullValue()));
                 ;
             }
@@ -208,6 +214,7 @@ public class PostgreSQLQueryTest {
                 preparedStatement.setString(4, FINGERPRINT_FILENAME);
                 preparedStatement.setString(5, JOB_NAME);
                 preparedStatement.setInt(6, BUILD_NUMBER);
+                preparedStatement.setNull(7, Types.BINARY);
                 preparedStatement.executeUpdate();
             }
 
@@ -257,6 +264,7 @@ public class PostgreSQLQueryTest {
                 preparedStatement.setString(4, FINGERPRINT_FILENAME);
                 preparedStatement.setString(5, JOB_NAME);
                 preparedStatement.setInt(6, BUILD_NUMBER);
+                preparedStatement.setNull(7, Types.BINARY);
                 preparedStatement.executeUpdate();
             }
 
@@ -323,4 +331,78 @@ public class PostgreSQLQueryTest {
             }
         }
     }
+
+    @Test
+    public void testFacetRelationIsKeyedByEntryHash(JenkinsRule rule)
+            throws SQLException, IOException, NoSuchAlgorithmException {
+        setConfiguration();
+        try (Connection connection = getConnection()) {
+            try (PreparedStatement preparedStatement =
+                    connection.prepareStatement(Queries.getQuery(Queries.INSERT_FINGERPRINT))) {
+                preparedStatement.setString(1, FINGERPRINT_ID);
+                preparedStatement.setString(2, INSTANCE_ID);
+                preparedStatement.setTimestamp(3, TIMESTAMP);
+                preparedStatement.setString(4, FINGERPRINT_FILENAME);
+                preparedStatement.setString(5, JOB_NAME);
+                preparedStatement.setInt(6, BUILD_NUMBER);
+                preparedStatement.setNull(7, Types.BINARY);
+                preparedStatement.executeUpdate();
+            }
+
+            JSONObject facetEntry = new JSONObject();
+            facetEntry.put("foo", "bar");
+
+            try (PreparedStatement preparedStatement =
+                    connection.prepareStatement(Queries.getQuery(Queries.INSERT_FINGERPRINT_FACET_RELATION))) {
+                preparedStatement.setString(1, FINGERPRINT_ID);
+                preparedStatement.setString(2, INSTANCE_ID);
+                preparedStatement.setString(3, "FingerprintFacet");
+                preparedStatement.setString(4, facetEntry.toString());
+                preparedStatement.setBoolean(5, true);
+                preparedStatement.executeUpdate();
+            }
+
+            byte[] compressedFacetEntry = DataConversion.compressFacetEntry(facetEntry.toString());
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    Queries.getQuery(Queries.INSERT_FINGERPRINT_FACET_RELATION_COMPRESSED))) {
+                preparedStatement.setString(1, FINGERPRINT_ID);
+                preparedStatement.setString(2, INSTANCE_ID);
+                preparedStatement.setString(3, "CompressedFingerprintFacet");
+                preparedStatement.setBytes(4, Util.getSHA256DigestOf(compressedFacetEntry));
+                preparedStatement.setBytes(5, compressedFacetEntry);
+                preparedStatement.setBoolean(6, true);
+                preparedStatement.executeUpdate();
+            }
+
+            try (PreparedStatement preparedStatement =
+                    connection.prepareStatement(Queries.getQuery(Queries.INSERT_FINGERPRINT_FACET_RELATIONS))) {
+                preparedStatement.setString(1, INSTANCE_ID);
+                preparedStatement.setArray(2, connection.createArrayOf("varchar", new String[] {FINGERPRINT_ID}));
+                preparedStatement.setArray(
+                        3, connection.createArrayOf("varchar", new String[] {"BulkFingerprintFacet"}));
+                preparedStatement.setArray(4, connection.createArrayOf("text", new String[] {facetEntry.toString()}));
+                preparedStatement.setArray(5, connection.createArrayOf("bool", new Boolean[] {true}));
+                preparedStatement.executeUpdate();
+            }
+
+            // The JSON inserts hash the canonical jsonb text of the entry, whatever the text they were given, and
+            // compressed entries are keyed by the hash of their payload.
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "SELECT encode(FACET_ENTRY_HASH, 'hex'), FACET_ENTRY_COMPRESSED IS NOT NULL "
+                            + "FROM FINGERPRINT_FACET_RELATION WHERE FINGERPRINT_ID = ? AND INSTANCE_ID = ?")) {
+                preparedStatement.setString(1, FINGERPRINT_ID);
+                preparedStatement.setString(2, INSTANCE_ID);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                String expectedHash = Util.toHexString(MessageDigest.getInstance("SHA-256")
+                        .digest("{\"foo\": \"bar\"}".getBytes(StandardCharsets.UTF_8)));
+                String expectedCompressedHash = Util.toHexString(Util.getSHA256DigestOf(compressedFacetEntry));
+                for (int i = 0; i < 3; i++) {
+                    assertThat(resultSet.next(), is(true));
+                    boolean compressed = resultSet.getBoolean(2);
+                    assertThat(resultSet.getString(1), is(compressed ? expectedCompressedHash : expectedHash));
+                }
+                assertThat(resultSet.next(), is(false));
+            }
+        }
+    }
 }
@@ -26,6 +26,7 @@ package io.jenkins.plugins.postgresql;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNot.not;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 
 import hudson.Util;
 import hudson.model.Fingerprint;
@@ -34,6 +35,9 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
 import jenkins.fingerprints.GlobalFingerprintConfiguration;
 import org.hamcrest.Matchers;
 import org.jenkinsci.plugins.database.GlobalDatabaseConfiguration;
@@ -41,6 +45,7 @@ import org.jenkinsci.plugins.database.postgresql.PostgreSQLDatabase;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.postgresql.ds.PGSimpleDataSource;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
@@ -53,6 +58,11 @@ public class PostgreSQLSchemaInitializationTest {
     public PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
 
     public void setConfiguration() throws IOException {
+        setConfigurationWithoutMigration();
+        DatabaseSchemaLoader.migrateSchema();
+    }
+
+    private void setConfigurationWithoutMigration() throws IOException {
         PostgreSQLDatabase database = new PostgreSQLDatabase(
                 postgres.getHost() + ":" + postgres.getMappedPort(5432),
                 postgres.getDatabaseName(),
@@ -63,7 +73,6 @@ public class PostgreSQLSchemaInitializationTest {
         GlobalDatabaseConfiguration.get().setDatabase(database);
         PostgreSQLFingerprintStorage postgreSQLFingerprintStorage = PostgreSQLFingerprintStorage.get();
         GlobalFingerprintConfiguration.get().setStorage(postgreSQLFingerprintStorage);
-        DatabaseSchemaLoader.migrateSchema();
     }
 
     @Test
@@ -97,6 +106,23 @@ public class PostgreSQLSchemaInitializationTest {
         }
     }
 
+    @Test
+    public void testSchemaMigratedBeforeFirstConnection(JenkinsRule rule) throws Exception {
+        setConfigurationWithoutMigration();
+        PostgreSQLFingerprintStorage postgreSQLFingerprintStorage = PostgreSQLFingerprintStorage.get();
+        assertThat(DatabaseSchemaLoader.isMigrated(), is(false));
+
+        try (Connection connection =
+                        postgreSQLFingerprintStorage.getConnectionSupplier().connection();
+                PreparedStatement preparedStatement =
+                        connection.prepareStatement(Queries.getQuery(Queries.CHECK_FINGERPRINT_TABLE_EXISTS))) {
+            assertThat(DatabaseSchemaLoader.isMigrated(), is(true));
+            ResultSet resultSet = preparedStatement.executeQuery();
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getInt(ColumnName.TOTAL), is(1));
+        }
+    }
+
     @Test
     public void testSchemaIntializationDoesNotDeleteData(JenkinsRule rule) throws Exception {
         setConfiguration();
@@ -130,4 +156,87 @@ public class PostgreSQLSchemaInitializationTest {
         assertThat(fingerprintLoaded, is(not(Matchers.nullValue())));
         assertThat(fingerprintLoaded.toString(), is(Matchers.equalTo(fingerprintSaved.toString())));
     }
+
+    @Test
+    public void testMigrationFromFirstVersionWithData(JenkinsRule rule) throws Exception {
+        PGSimpleDataSource dataSource = new PGSimpleDataSource();
+        dataSource.setUrl(postgres.getJdbcUrl());
+        dataSource.setUser(postgres.getUsername());
+        dataSource.setPassword(postgres.getPassword());
+        DatabaseSchemaLoader.configure(dataSource).target("1").load().migrate();
+
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.executeUpdate("INSERT INTO FINGERPRINT VALUES ('id', 'instance', NOW(), 'foo.jar', 'job', 1)");
+            statement.executeUpdate("INSERT INTO FINGERPRINT_JOB_BUILD_RELATION VALUES ('id', 'instance', 'job', 1)");
+            statement.executeUpdate(
+                    "INSERT INTO FINGERPRINT_FACET_RELATION VALUES ('id', 'instance', 'facet', '{}', TRUE)");
+        }
+
+        assertTimeoutPreemptively(Duration.ofMinutes(2), () -> DatabaseSchemaLoader.migrate(dataSource));
+
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM FINGERPRINT_FACET_RELATION")) {
+                assertThat(resultSet.next(), is(true));
+                assertThat(resultSet.getInt(1), is(1));
+            }
+            assertValidIndexes(
+                    statement,
+                    "fingerprint_timestamp_index",
+                    "fingerprint_facet_relation_deletion_blocked_index",
+                    "fingerprint_job_build_relation_job_index",
+                    "fingerprint_original_job_name_index",
+                    "fingerprint_facet_relation_entry_index",
+                    "fingerprint_facet_relation_name_index");
+        }
+    }
+
+    @Test
+    public void testMigrationRebuildsInvalidIndexes(JenkinsRule rule) throws Exception {
+        PGSimpleDataSource dataSource = new PGSimpleDataSource();
+        dataSource.setUrl(postgres.getJdbcUrl());
+        dataSource.setUser(postgres.getUsername());
+        dataSource.setPassword(postgres.getPassword());
+        DatabaseSchemaLoader.configure(dataSource).target("2").load().migrate();
+
+        String[] names = {
+            "fingerprint_timestamp_index",
+            "fingerprint_facet_relation_deletion_blocked_index",
+            "fingerprint_job_build_relation_job_index",
+            "fingerprint_original_job_name_index",
+            "fingerprint_facet_relation_entry_index",
+            "fingerprint_facet_relation_name_index"
+        };
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            // What a concurrent build interrupted by a failure leaves behind.
+            for (String name : names) {
+                statement.executeUpdate("CREATE INDEX " + name + " ON FINGERPRINT (FILENAME)");
+                statement.executeUpdate(
+                        "UPDATE pg_index SET indisvalid = FALSE WHERE indexrelid = to_regclass('" + name + "')");
+            }
+        }
+
+        DatabaseSchemaLoader.migrate(dataSource);
+
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            assertValidIndexes(statement, names);
+        }
+    }
+
+    /**
+     * Asserts that the given indexes exist and were built completely, which indexes created concurrently are not if
+     * their migration failed.
+     */
+    private static void assertValidIndexes(Statement statement, String... names) throws SQLException {
+        for (String name : names) {
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass('" + name + "')")) {
+                assertThat(name, resultSet.next(), is(true));
+                assertThat(name, resultSet.getBoolean(1), is(true));
+            }
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+
+import hudson.Util;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class ShardRingTest {
+
+    private static final int IDS = 10000;
+
+    @Test
+    public void shouldRouteIndependentlyOfOrder() {
+        Map<String, String> members = new LinkedHashMap<>();
+        members.put("global", "global");
+        members.put("a", "a");
+        members.put("b", "b");
+        Map<String, String> reordered = new LinkedHashMap<>();
+        reordered.put("b", "b");
+        reordered.put("global", "global");
+        reordered.put("a", "a");
+
+        ShardRing<String> ring = new ShardRing<>(members);
+        ShardRing<String> reorderedRing = new ShardRing<>(reordered);
+        for (int i = 0; i < IDS; i++) {
+            String id = Util.getDigestOf("fingerprint" + i);
+            assertThat(reorderedRing.owner(id), is(ring.owner(id)));
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveFingerprintsToAddedShard() {
+        Map<String, String> members = new LinkedHashMap<>();
+        members.put("global", "global");
+        members.put("a", "a");
+        ShardRing<String> ring = new ShardRing<>(members);
+        members.put("b", "b");
+        ShardRing<String> grownRing = new ShardRing<>(members);
+
+        int moved = 0;
+        for (int i = 0; i < IDS; i++) {
+            String id = Util.getDigestOf("fingerprint" + i);
+            if (!grownRing.owner(id).equals(ring.owner(id))) {
+                assertThat(grownRing.owner(id), is("b"));
+                moved++;
+            }
+        }
+        assertThat(moved, is(greaterThan(IDS / 5)));
+        assertThat(moved, is(lessThan(IDS / 2)));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2023, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.jenkins.plugins.postgresql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+
+import hudson.Util;
+import hudson.model.Fingerprint;
+import hudson.util.Secret;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import jenkins.fingerprints.GlobalFingerprintConfiguration;
+import org.jenkinsci.plugins.database.GlobalDatabaseConfiguration;
+import org.jenkinsci.plugins.database.postgresql.PostgreSQLDatabase;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@WithJenkins
+@Testcontainers
+public class ShardingTest {
+
+    private static final int FINGERPRINTS = 20;
+
+    @Container
+    public PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
+
+    @Container
+    public PostgreSQLContainer<?> shard = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
+
+    @Test
+    public void shouldRebalanceFingerprintsToAddedShard(JenkinsRule j) throws Exception {
+        GlobalDatabaseConfiguration.get().setDatabase(createDatabase(postgres));
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        GlobalFingerprintConfiguration.get().setStorage(storage);
+        DatabaseSchemaLoader.migrateSchema();
+
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < FINGERPRINTS; i++) {
+            String id = Util.getDigestOf("sharding" + i);
+            Fingerprint fingerprint = new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+            fingerprint.add("a", i);
+            ids.add(id);
+        }
+        assertThat(countFingerprints(postgres), is(FINGERPRINTS));
+
+        storage.setShards(Collections.singletonList(new Shard("shard", createDatabase(shard))));
+        assertThat(storage.isRebalancePending(), is(true));
+        for (int i = 0; i < FINGERPRINTS; i++) {
+            assertThat(storage.load(ids.get(i)).getRangeSet("a").includes(i), is(true));
+        }
+
+        int moved = storage.rebalanceShards();
+        assertThat(moved, is(greaterThan(0)));
+        assertThat(storage.isRebalancePending(), is(false));
+        assertThat(countFingerprints(shard), is(moved));
+        assertThat(countFingerprints(postgres), is(FINGERPRINTS - moved));
+        for (int i = 0; i < FINGERPRINTS; i++) {
+            assertThat(storage.load(ids.get(i)).getRangeSet("a").includes(i), is(true));
+        }
+
+        storage.delete(ids.get(0));
+        storage.deleteAll(ids.subList(1, FINGERPRINTS));
+        assertThat(countFingerprints(postgres), is(0));
+        assertThat(countFingerprints(shard), is(0));
+    }
+
+    @Test
+    public void shouldNotDeadlockAsyncDeletesAcrossShardsOnPlatformThreads(JenkinsRule j) throws Exception {
+        GlobalDatabaseConfiguration.get().setDatabase(createDatabase(postgres));
+        PostgreSQLFingerprintStorage storage = PostgreSQLFingerprintStorage.get();
+        GlobalFingerprintConfiguration.get().setStorage(storage);
+        DatabaseSchemaLoader.migrateSchema();
+
+        int count = StorageExecutor.MAX_CONCURRENCY * 3;
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String id = Util.getDigestOf("async-sharding" + i);
+            new Fingerprint(null, "foo.jar", Util.fromHexString(id));
+            ids.add(id);
+        }
+        assertThat(countFingerprints(postgres), is(count));
+
+        // While the rebalance is pending, every delete fans out to both databases from a pool thread.
+        storage.setShards(Collections.singletonList(new Shard("shard", createDatabase(shard))));
+        assertThat(storage.isRebalancePending(), is(true));
+        StorageExecutor.usePlatformThreads();
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (String id : ids) {
+                futures.add(storage.deleteAsync(id));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        } finally {
+            StorageExecutor.shutdown();
+        }
+        assertThat(countFingerprints(postgres), is(0));
+        assertThat(countFingerprints(shard), is(0));
+    }
+
+    private static PostgreSQLDatabase createDatabase(PostgreSQLContainer<?> container) {
+        PostgreSQLDatabase database = new PostgreSQLDatabase(
+                container.getHost() + ":" + container.getMappedPort(5432),
+                container.getDatabaseName(),
+                container.getUsername(),
+                Secret.fromString(container.getPassword()),
+                null);
+        database.setValidationQuery("SELECT 1");
+        return database;
+    }
+
+    private static int countFingerprints(PostgreSQLContainer<?> container) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(
+                        container.getJdbcUrl(), container.getUsername(), container.getPassword());
+                PreparedStatement preparedStatement = connection.prepareStatement("SELECT COUNT(*) FROM FINGERPRINT");
+                ResultSet resultSet = preparedStatement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+}